@@ -0,0 +1,1139 @@
+package lox;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A program's syntax tree packed into an int array and a constant pool,
+ * generated by GenerateAst --arena. Nodes are addressed by their offset.
+ */
+final class Ast {
+
+    static final int ASSIGN = 0;
+    static final int TERNARY = 1;
+    static final int BINARY = 2;
+    static final int CALL = 3;
+    static final int GET = 4;
+    static final int GROUPING = 5;
+    static final int LITERAL = 6;
+    static final int LOGICAL = 7;
+    static final int SET = 8;
+    static final int THIS = 9;
+    static final int UNARY = 10;
+    static final int VARIABLE = 11;
+    static final int LAMBDA = 12;
+    static final int ARRAY = 13;
+    static final int INDEX = 14;
+    static final int INDEX_SET = 15;
+    static final int BLOCK = 16;
+    static final int CLASS = 17;
+    static final int EXPRESSION = 18;
+    static final int FUNCTION = 19;
+    static final int IF = 20;
+    static final int WHILE = 21;
+    static final int PRINT = 22;
+    static final int RETURN = 23;
+    static final int VAR = 24;
+    static final int MULTI_VAR = 25;
+    static final int YIELD = 26;
+    static final int FOR_IN = 27;
+    static final int IMPORT = 28;
+
+    /**
+     * Changes whenever the node types or token types do, so a stored arena
+     * is only read back by the code that wrote it.
+     */
+    static final int FORMAT = 31 * 2102068299 + Arrays.toString(TokenType.values()).hashCode();
+
+    private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+    private static final byte CONSTANT_NIL = 0;
+    private static final byte CONSTANT_FALSE = 1;
+    private static final byte CONSTANT_TRUE = 2;
+    private static final byte CONSTANT_NUMBER = 3;
+    private static final byte CONSTANT_STRING = 4;
+
+    private int[] nodes = new int[64];
+    private int size = 0;
+    private int[] tokens = new int[64];
+    private int tokenCount = 0;
+    private Object[] constants = new Object[16];
+    private int constantCount = 0;
+    private int[] localNodes = new int[16];
+    private int[] localDepths = new int[16];
+    private int localCount = 0;
+
+    // set only while decoding
+    private Token[] decodedTokens;
+    private Map<Expr, Integer> decodedLocals;
+
+    /**
+     * The list of top-level statements.
+     */
+    final int statements;
+
+    private Ast(List<Stmt> statements, Map<Expr, Integer> locals) {
+        Encoder encoder = new Encoder(locals);
+        this.statements = encoder.stmts(statements);
+        nodes = Arrays.copyOf(nodes, size);
+        tokens = Arrays.copyOf(tokens, tokenCount * 4);
+        constants = Arrays.copyOf(constants, constantCount);
+        localNodes = Arrays.copyOf(localNodes, localCount);
+        localDepths = Arrays.copyOf(localDepths, localCount);
+    }
+
+    static Ast encode(List<Stmt> statements) {
+        return new Ast(statements, Collections.emptyMap());
+    }
+
+    static Ast encode(Program program) {
+        return new Ast(program.statements, program.locals);
+    }
+
+    /**
+     * Rebuilds the node objects and their resolved locals, for the
+     * interpreter. Equal tokens decode to one shared Token.
+     */
+    Program decode() {
+        decodedTokens = new Token[tokenCount];
+        decodedLocals = new HashMap<>();
+        try {
+            return new Program(stmtList(statements), decodedLocals);
+        } finally {
+            decodedTokens = null;
+            decodedLocals = null;
+        }
+    }
+
+    /**
+     * Writes the arena in the form read: the top-level list, the node,
+     * token and local arrays each preceded by its length, then the
+     * constants, each tagged with its type.
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(statements);
+        writeInts(out, nodes);
+        writeInts(out, tokens);
+        writeInts(out, localNodes);
+        writeInts(out, localDepths);
+
+        out.writeInt(constants.length);
+        for (Object constant : constants) {
+            if (constant == null) {
+                out.writeByte(CONSTANT_NIL);
+            } else if (constant instanceof Boolean) {
+                out.writeByte((Boolean) constant ? CONSTANT_TRUE : CONSTANT_FALSE);
+            } else if (constant instanceof Double) {
+                out.writeByte(CONSTANT_NUMBER);
+                out.writeDouble((Double) constant);
+            } else if (constant instanceof String) {
+                byte[] bytes = ((String) constant).getBytes(StandardCharsets.UTF_8);
+                out.writeByte(CONSTANT_STRING);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            } else {
+                throw new IOException("Cannot write constant " + constant + ".");
+            }
+        }
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) out.writeInt(value);
+    }
+
+    /**
+     * Reads an arena written by write, leaving the buffer just past it.
+     * Lengths are checked against what is left, and decoding rejects a
+     * missing required child or a child of the wrong kind, but other
+     * damage can go unnoticed: callers should check the bytes first.
+     */
+    static Ast read(ByteBuffer buffer) {
+        return new Ast(buffer);
+    }
+
+    private Ast(ByteBuffer buffer) {
+        statements = buffer.getInt();
+        nodes = readInts(buffer);
+        size = nodes.length;
+        tokens = readInts(buffer);
+        tokenCount = tokens.length / 4;
+        localNodes = readInts(buffer);
+        localDepths = readInts(buffer);
+        localCount = localNodes.length;
+        if (localDepths.length != localCount) throw new IllegalArgumentException("Bad locals.");
+
+        constantCount = buffer.getInt();
+        if (constantCount < 0 || constantCount > buffer.remaining()) {
+            throw new IllegalArgumentException("Bad constant count.");
+        }
+        constants = new Object[constantCount];
+        for (int i = 0; i < constantCount; i++) {
+            switch (buffer.get()) {
+                case CONSTANT_NIL: break;
+                case CONSTANT_FALSE: constants[i] = false; break;
+                case CONSTANT_TRUE: constants[i] = true; break;
+                case CONSTANT_NUMBER: constants[i] = buffer.getDouble(); break;
+                case CONSTANT_STRING:
+                    int length = buffer.getInt();
+                    if (length < 0 || length > buffer.remaining()) {
+                        throw new IllegalArgumentException("Bad string length.");
+                    }
+                    byte[] bytes = new byte[length];
+                    buffer.get(bytes);
+                    constants[i] = new String(bytes, StandardCharsets.UTF_8);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Bad constant tag.");
+            }
+        }
+    }
+
+    private static int[] readInts(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining() / 4) {
+            throw new IllegalArgumentException("Bad array length.");
+        }
+        int[] values = new int[length];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + length * 4);
+        return values;
+    }
+
+    int kind(int node) {
+        return nodes[node];
+    }
+
+    int listSize(int list) {
+        return nodes[list];
+    }
+
+    /**
+     * The i-th element of a list: a node offset, or a token index for a
+     * list of tokens.
+     */
+    int listGet(int list, int i) {
+        return nodes[list + 1 + i];
+    }
+
+    Token token(int token) {
+        if (token == -1) return null;
+        if (decodedTokens != null && decodedTokens[token] != null) return decodedTokens[token];
+
+        int at = token * 4;
+        Token decoded = new Token(TOKEN_TYPES[tokens[at]], (String) constants[tokens[at + 1]],
+                constants[tokens[at + 2]], tokens[at + 3]);
+        if (decodedTokens != null) decodedTokens[token] = decoded;
+        return decoded;
+    }
+
+    int nodeCount() {
+        return size;
+    }
+
+    Token assignName(int node) {
+        return token(nodes[node + 1]);
+    }
+
+    int assignValue(int node) {
+        return nodes[node + 2];
+    }
+
+    int ternaryCondition(int node) {
+        return nodes[node + 1];
+    }
+
+    int ternaryThenBranch(int node) {
+        return nodes[node + 2];
+    }
+
+    int ternaryElseBranch(int node) {
+        return nodes[node + 3];
+    }
+
+    int binaryLeft(int node) {
+        return nodes[node + 1];
+    }
+
+    Token binaryOperator(int node) {
+        return token(nodes[node + 2]);
+    }
+
+    int binaryRight(int node) {
+        return nodes[node + 3];
+    }
+
+    int callCallee(int node) {
+        return nodes[node + 1];
+    }
+
+    Token callParen(int node) {
+        return token(nodes[node + 2]);
+    }
+
+    int callArguments(int node) {
+        return nodes[node + 3];
+    }
+
+    int getObject(int node) {
+        return nodes[node + 1];
+    }
+
+    Token getName(int node) {
+        return token(nodes[node + 2]);
+    }
+
+    int groupingExpression(int node) {
+        return nodes[node + 1];
+    }
+
+    Object literalValue(int node) {
+        return constants[nodes[node + 1]];
+    }
+
+    int logicalLeft(int node) {
+        return nodes[node + 1];
+    }
+
+    Token logicalOperator(int node) {
+        return token(nodes[node + 2]);
+    }
+
+    int logicalRight(int node) {
+        return nodes[node + 3];
+    }
+
+    int setObject(int node) {
+        return nodes[node + 1];
+    }
+
+    Token setName(int node) {
+        return token(nodes[node + 2]);
+    }
+
+    int setValue(int node) {
+        return nodes[node + 3];
+    }
+
+    Token thisKeyword(int node) {
+        return token(nodes[node + 1]);
+    }
+
+    Token unaryOperator(int node) {
+        return token(nodes[node + 1]);
+    }
+
+    int unaryRight(int node) {
+        return nodes[node + 2];
+    }
+
+    Token variableName(int node) {
+        return token(nodes[node + 1]);
+    }
+
+    Token lambdaName(int node) {
+        return token(nodes[node + 1]);
+    }
+
+    int lambdaParams(int node) {
+        return nodes[node + 2];
+    }
+
+    int lambdaBody(int node) {
+        return nodes[node + 3];
+    }
+
+    boolean lambdaIsGenerator(int node) {
+        return nodes[node + 4] != 0;
+    }
+
+    Token arrayBracket(int node) {
+        return token(nodes[node + 1]);
+    }
+
+    int arrayElements(int node) {
+        return nodes[node + 2];
+    }
+
+    int indexObject(int node) {
+        return nodes[node + 1];
+    }
+
+    Token indexBracket(int node) {
+        return token(nodes[node + 2]);
+    }
+
+    int indexIndex(int node) {
+        return nodes[node + 3];
+    }
+
+    int indexSetObject(int node) {
+        return nodes[node + 1];
+    }
+
+    Token indexSetBracket(int node) {
+        return token(nodes[node + 2]);
+    }
+
+    int indexSetIndex(int node) {
+        return nodes[node + 3];
+    }
+
+    int indexSetValue(int node) {
+        return nodes[node + 4];
+    }
+
+    int blockStatements(int node) {
+        return nodes[node + 1];
+    }
+
+    Token className(int node) {
+        return token(nodes[node + 1]);
+    }
+
+    int classMethods(int node) {
+        return nodes[node + 2];
+    }
+
+    int classStaticMethods(int node) {
+        return nodes[node + 3];
+    }
+
+    int expressionExpression(int node) {
+        return nodes[node + 1];
+    }
+
+    Token functionName(int node) {
+        return token(nodes[node + 1]);
+    }
+
+    int functionParams(int node) {
+        return nodes[node + 2];
+    }
+
+    int functionBody(int node) {
+        return nodes[node + 3];
+    }
+
+    boolean functionIsGenerator(int node) {
+        return nodes[node + 4] != 0;
+    }
+
+    boolean functionIsPure(int node) {
+        return nodes[node + 5] != 0;
+    }
+
+    int ifCondition(int node) {
+        return nodes[node + 1];
+    }
+
+    int ifThenBranch(int node) {
+        return nodes[node + 2];
+    }
+
+    int ifElseBranch(int node) {
+        return nodes[node + 3];
+    }
+
+    Token whileKeyword(int node) {
+        return token(nodes[node + 1]);
+    }
+
+    int whileCondition(int node) {
+        return nodes[node + 2];
+    }
+
+    int whileBody(int node) {
+        return nodes[node + 3];
+    }
+
+    int printExpression(int node) {
+        return nodes[node + 1];
+    }
+
+    Token returnKeyword(int node) {
+        return token(nodes[node + 1]);
+    }
+
+    int returnValue(int node) {
+        return nodes[node + 2];
+    }
+
+    Token varName(int node) {
+        return token(nodes[node + 1]);
+    }
+
+    int varInitializer(int node) {
+        return nodes[node + 2];
+    }
+
+    int multiVarVars(int node) {
+        return nodes[node + 1];
+    }
+
+    Token yieldKeyword(int node) {
+        return token(nodes[node + 1]);
+    }
+
+    int yieldValue(int node) {
+        return nodes[node + 2];
+    }
+
+    Token forInName(int node) {
+        return token(nodes[node + 1]);
+    }
+
+    int forInIterable(int node) {
+        return nodes[node + 2];
+    }
+
+    int forInBody(int node) {
+        return nodes[node + 3];
+    }
+
+    Token importKeyword(int node) {
+        return token(nodes[node + 1]);
+    }
+
+    Token importPath(int node) {
+        return token(nodes[node + 2]);
+    }
+
+    interface Visitor<R> {
+        R visitAssignExpr(Ast ast, int node);
+        R visitTernaryExpr(Ast ast, int node);
+        R visitBinaryExpr(Ast ast, int node);
+        R visitCallExpr(Ast ast, int node);
+        R visitGetExpr(Ast ast, int node);
+        R visitGroupingExpr(Ast ast, int node);
+        R visitLiteralExpr(Ast ast, int node);
+        R visitLogicalExpr(Ast ast, int node);
+        R visitSetExpr(Ast ast, int node);
+        R visitThisExpr(Ast ast, int node);
+        R visitUnaryExpr(Ast ast, int node);
+        R visitVariableExpr(Ast ast, int node);
+        R visitLambdaExpr(Ast ast, int node);
+        R visitArrayExpr(Ast ast, int node);
+        R visitIndexExpr(Ast ast, int node);
+        R visitIndexSetExpr(Ast ast, int node);
+        R visitBlockStmt(Ast ast, int node);
+        R visitClassStmt(Ast ast, int node);
+        R visitExpressionStmt(Ast ast, int node);
+        R visitFunctionStmt(Ast ast, int node);
+        R visitIfStmt(Ast ast, int node);
+        R visitWhileStmt(Ast ast, int node);
+        R visitPrintStmt(Ast ast, int node);
+        R visitReturnStmt(Ast ast, int node);
+        R visitVarStmt(Ast ast, int node);
+        R visitMultiVarStmt(Ast ast, int node);
+        R visitYieldStmt(Ast ast, int node);
+        R visitForInStmt(Ast ast, int node);
+        R visitImportStmt(Ast ast, int node);
+    }
+
+    <R> R accept(int node, Visitor<R> visitor) {
+        switch (nodes[node]) {
+            case ASSIGN: return visitor.visitAssignExpr(this, node);
+            case TERNARY: return visitor.visitTernaryExpr(this, node);
+            case BINARY: return visitor.visitBinaryExpr(this, node);
+            case CALL: return visitor.visitCallExpr(this, node);
+            case GET: return visitor.visitGetExpr(this, node);
+            case GROUPING: return visitor.visitGroupingExpr(this, node);
+            case LITERAL: return visitor.visitLiteralExpr(this, node);
+            case LOGICAL: return visitor.visitLogicalExpr(this, node);
+            case SET: return visitor.visitSetExpr(this, node);
+            case THIS: return visitor.visitThisExpr(this, node);
+            case UNARY: return visitor.visitUnaryExpr(this, node);
+            case VARIABLE: return visitor.visitVariableExpr(this, node);
+            case LAMBDA: return visitor.visitLambdaExpr(this, node);
+            case ARRAY: return visitor.visitArrayExpr(this, node);
+            case INDEX: return visitor.visitIndexExpr(this, node);
+            case INDEX_SET: return visitor.visitIndexSetExpr(this, node);
+            case BLOCK: return visitor.visitBlockStmt(this, node);
+            case CLASS: return visitor.visitClassStmt(this, node);
+            case EXPRESSION: return visitor.visitExpressionStmt(this, node);
+            case FUNCTION: return visitor.visitFunctionStmt(this, node);
+            case IF: return visitor.visitIfStmt(this, node);
+            case WHILE: return visitor.visitWhileStmt(this, node);
+            case PRINT: return visitor.visitPrintStmt(this, node);
+            case RETURN: return visitor.visitReturnStmt(this, node);
+            case VAR: return visitor.visitVarStmt(this, node);
+            case MULTI_VAR: return visitor.visitMultiVarStmt(this, node);
+            case YIELD: return visitor.visitYieldStmt(this, node);
+            case FOR_IN: return visitor.visitForInStmt(this, node);
+            case IMPORT: return visitor.visitImportStmt(this, node);
+            default: throw new IllegalStateException("Bad node kind " + nodes[node] + ".");
+        }
+    }
+
+    private Expr expr(int node) {
+        if (node == -1) return null;
+
+        Expr expr = newExpr(node);
+        int local = Arrays.binarySearch(localNodes, 0, localCount, node);
+        if (local >= 0) decodedLocals.put(expr, localDepths[local]);
+        return expr;
+    }
+
+    private Expr newExpr(int node) {
+        switch (nodes[node]) {
+            case ASSIGN:
+                return new Expr.Assign(require(token(nodes[node + 1])), require(expr(nodes[node + 2])));
+            case TERNARY:
+                return new Expr.Ternary(require(expr(nodes[node + 1])), require(expr(nodes[node + 2])), require(expr(nodes[node + 3])));
+            case BINARY:
+                return new Expr.Binary(require(expr(nodes[node + 1])), require(token(nodes[node + 2])), require(expr(nodes[node + 3])));
+            case CALL:
+                return new Expr.Call(require(expr(nodes[node + 1])), require(token(nodes[node + 2])), require(exprList(nodes[node + 3])));
+            case GET:
+                return new Expr.Get(require(expr(nodes[node + 1])), require(token(nodes[node + 2])));
+            case GROUPING:
+                return new Expr.Grouping(require(expr(nodes[node + 1])));
+            case LITERAL:
+                return new Expr.Literal(constants[nodes[node + 1]]);
+            case LOGICAL:
+                return new Expr.Logical(require(expr(nodes[node + 1])), require(token(nodes[node + 2])), require(expr(nodes[node + 3])));
+            case SET:
+                return new Expr.Set(require(expr(nodes[node + 1])), require(token(nodes[node + 2])), require(expr(nodes[node + 3])));
+            case THIS:
+                return new Expr.This(require(token(nodes[node + 1])));
+            case UNARY:
+                return new Expr.Unary(require(token(nodes[node + 1])), require(expr(nodes[node + 2])));
+            case VARIABLE:
+                return new Expr.Variable(require(token(nodes[node + 1])));
+            case LAMBDA:
+                return new Expr.Lambda(require(token(nodes[node + 1])), require(tokenList(nodes[node + 2])), require(stmtList(nodes[node + 3])), nodes[node + 4] != 0);
+            case ARRAY:
+                return new Expr.Array(require(token(nodes[node + 1])), require(exprList(nodes[node + 2])));
+            case INDEX:
+                return new Expr.Index(require(expr(nodes[node + 1])), require(token(nodes[node + 2])), require(expr(nodes[node + 3])));
+            case INDEX_SET:
+                return new Expr.IndexSet(require(expr(nodes[node + 1])), require(token(nodes[node + 2])), require(expr(nodes[node + 3])), require(expr(nodes[node + 4])));
+            default:
+                throw new IllegalStateException("Bad node kind " + nodes[node] + ".");
+        }
+    }
+
+    private Stmt stmt(int node) {
+        if (node == -1) return null;
+
+        switch (nodes[node]) {
+            case BLOCK:
+                return new Stmt.Block(require(stmtList(nodes[node + 1])));
+            case CLASS:
+                return new Stmt.Class(require(token(nodes[node + 1])), require(functionList(nodes[node + 2])), require(functionList(nodes[node + 3])));
+            case EXPRESSION:
+                return new Stmt.Expression(require(expr(nodes[node + 1])));
+            case FUNCTION:
+                return new Stmt.Function(require(token(nodes[node + 1])), require(tokenList(nodes[node + 2])), require(stmtList(nodes[node + 3])), nodes[node + 4] != 0, nodes[node + 5] != 0);
+            case IF:
+                return new Stmt.If(require(expr(nodes[node + 1])), require(stmt(nodes[node + 2])), stmt(nodes[node + 3]));
+            case WHILE:
+                return new Stmt.While(require(token(nodes[node + 1])), require(expr(nodes[node + 2])), require(stmt(nodes[node + 3])));
+            case PRINT:
+                return new Stmt.Print(require(expr(nodes[node + 1])));
+            case RETURN:
+                return new Stmt.Return(require(token(nodes[node + 1])), expr(nodes[node + 2]));
+            case VAR:
+                return new Stmt.Var(require(token(nodes[node + 1])), expr(nodes[node + 2]));
+            case MULTI_VAR:
+                return new Stmt.MultiVar(require(varList(nodes[node + 1])));
+            case YIELD:
+                return new Stmt.Yield(require(token(nodes[node + 1])), require(expr(nodes[node + 2])));
+            case FOR_IN:
+                return new Stmt.ForIn(require(token(nodes[node + 1])), require(expr(nodes[node + 2])), require(stmt(nodes[node + 3])));
+            case IMPORT:
+                return new Stmt.Import(require(token(nodes[node + 1])), require(token(nodes[node + 2])));
+            default:
+                throw new IllegalStateException("Bad node kind " + nodes[node] + ".");
+        }
+    }
+
+    private List<Expr> exprList(int list) {
+        if (list == -1) return null;
+
+        List<Expr> elements = new ArrayList<>(nodes[list]);
+        for (int i = 0; i < nodes[list]; i++) {
+            elements.add(require(expr(nodes[list + 1 + i])));
+        }
+        return elements;
+    }
+
+    private List<Stmt> stmtList(int list) {
+        if (list == -1) return null;
+
+        List<Stmt> elements = new ArrayList<>(nodes[list]);
+        for (int i = 0; i < nodes[list]; i++) {
+            elements.add(require(stmt(nodes[list + 1 + i])));
+        }
+        return elements;
+    }
+
+    private List<Stmt.Function> functionList(int list) {
+        if (list == -1) return null;
+
+        List<Stmt.Function> elements = new ArrayList<>(nodes[list]);
+        for (int i = 0; i < nodes[list]; i++) {
+            elements.add(require((Stmt.Function) stmt(nodes[list + 1 + i], FUNCTION)));
+        }
+        return elements;
+    }
+
+    private List<Stmt.Var> varList(int list) {
+        if (list == -1) return null;
+
+        List<Stmt.Var> elements = new ArrayList<>(nodes[list]);
+        for (int i = 0; i < nodes[list]; i++) {
+            elements.add(require((Stmt.Var) stmt(nodes[list + 1 + i], VAR)));
+        }
+        return elements;
+    }
+
+    private List<Token> tokenList(int list) {
+        if (list == -1) return null;
+
+        List<Token> elements = new ArrayList<>(nodes[list]);
+        for (int i = 0; i < nodes[list]; i++) {
+            elements.add(require(token(nodes[list + 1 + i])));
+        }
+        return elements;
+    }
+
+    /**
+     * Decodes a statement that must be of the given kind.
+     */
+    private Stmt stmt(int node, int kind) {
+        if (node != -1 && nodes[node] != kind) {
+            throw new IllegalStateException("Bad node kind " + nodes[node] + ".");
+        }
+        return stmt(node);
+    }
+
+    private static <T> T require(T child) {
+        if (child == null) throw new IllegalStateException("Missing child node.");
+        return child;
+    }
+
+    private int allocate(int length) {
+        if (size + length > nodes.length) {
+            nodes = Arrays.copyOf(nodes, Math.max(nodes.length * 2, size + length));
+        }
+        int at = size;
+        size += length;
+        return at;
+    }
+
+    private class Encoder implements Expr.Visitor<Integer>, Stmt.Visitor<Integer> {
+        private final Map<Token, Integer> pooledTokens = new HashMap<>();
+        private final Map<Object, Integer> pooledConstants = new HashMap<>();
+        private final Map<Expr, Integer> locals;
+
+        Encoder(Map<Expr, Integer> locals) {
+            this.locals = locals;
+        }
+
+        /**
+         * Nodes are allocated after their children, so locals are recorded in
+         * increasing node order and stay sorted.
+         */
+        int expr(Expr expr) {
+            if (expr == null) return -1;
+
+            int node = expr.accept(this);
+            Integer depth = locals.get(expr);
+            if (depth != null) {
+                if (localCount == localNodes.length) {
+                    localNodes = Arrays.copyOf(localNodes, localCount * 2);
+                    localDepths = Arrays.copyOf(localDepths, localCount * 2);
+                }
+                localNodes[localCount] = node;
+                localDepths[localCount++] = depth;
+            }
+            return node;
+        }
+
+        int stmt(Stmt stmt) {
+            return stmt == null ? -1 : stmt.accept(this);
+        }
+
+        int exprs(List<Expr> exprs) {
+            if (exprs == null) return -1;
+
+            int[] elements = new int[exprs.size()];
+            for (int i = 0; i < elements.length; i++) elements[i] = expr(exprs.get(i));
+            return list(elements);
+        }
+
+        int stmts(List<? extends Stmt> stmts) {
+            if (stmts == null) return -1;
+
+            int[] elements = new int[stmts.size()];
+            for (int i = 0; i < elements.length; i++) elements[i] = stmt(stmts.get(i));
+            return list(elements);
+        }
+
+        int tokens(List<Token> tokens) {
+            if (tokens == null) return -1;
+
+            int[] elements = new int[tokens.size()];
+            for (int i = 0; i < elements.length; i++) elements[i] = token(tokens.get(i));
+            return list(elements);
+        }
+
+        private int list(int[] elements) {
+            int list = allocate(elements.length + 1);
+            nodes[list] = elements.length;
+            System.arraycopy(elements, 0, nodes, list + 1, elements.length);
+            return list;
+        }
+
+        private int token(Token token) {
+            if (token == null) return -1;
+
+            Integer index = pooledTokens.get(token);
+            if (index != null) return index;
+
+            if (tokenCount * 4 == tokens.length) {
+                tokens = Arrays.copyOf(tokens, tokens.length * 2);
+            }
+            int at = tokenCount * 4;
+            tokens[at] = token.type.ordinal();
+            tokens[at + 1] = constant(token.lexeme);
+            tokens[at + 2] = constant(token.literal);
+            tokens[at + 3] = token.line;
+            pooledTokens.put(token, tokenCount);
+            return tokenCount++;
+        }
+
+        private int constant(Object value) {
+            Integer index = pooledConstants.get(value);
+            if (index != null) return index;
+
+            if (constantCount == constants.length) {
+                constants = Arrays.copyOf(constants, constantCount * 2);
+            }
+            constants[constantCount] = value;
+            pooledConstants.put(value, constantCount);
+            return constantCount++;
+        }
+
+        @Override
+        public Integer visitAssignExpr(Expr.Assign expr) {
+            int value = expr(expr.value);
+            int node = allocate(3);
+            nodes[node] = ASSIGN;
+            nodes[node + 1] = token(expr.name);
+            nodes[node + 2] = value;
+            return node;
+        }
+
+        @Override
+        public Integer visitTernaryExpr(Expr.Ternary expr) {
+            int condition = expr(expr.condition);
+            int thenBranch = expr(expr.thenBranch);
+            int elseBranch = expr(expr.elseBranch);
+            int node = allocate(4);
+            nodes[node] = TERNARY;
+            nodes[node + 1] = condition;
+            nodes[node + 2] = thenBranch;
+            nodes[node + 3] = elseBranch;
+            return node;
+        }
+
+        @Override
+        public Integer visitBinaryExpr(Expr.Binary expr) {
+            int left = expr(expr.left);
+            int right = expr(expr.right);
+            int node = allocate(4);
+            nodes[node] = BINARY;
+            nodes[node + 1] = left;
+            nodes[node + 2] = token(expr.operator);
+            nodes[node + 3] = right;
+            return node;
+        }
+
+        @Override
+        public Integer visitCallExpr(Expr.Call expr) {
+            int callee = expr(expr.callee);
+            int arguments = exprs(expr.arguments);
+            int node = allocate(4);
+            nodes[node] = CALL;
+            nodes[node + 1] = callee;
+            nodes[node + 2] = token(expr.paren);
+            nodes[node + 3] = arguments;
+            return node;
+        }
+
+        @Override
+        public Integer visitGetExpr(Expr.Get expr) {
+            int object = expr(expr.object);
+            int node = allocate(3);
+            nodes[node] = GET;
+            nodes[node + 1] = object;
+            nodes[node + 2] = token(expr.name);
+            return node;
+        }
+
+        @Override
+        public Integer visitGroupingExpr(Expr.Grouping expr) {
+            int expression = expr(expr.expression);
+            int node = allocate(2);
+            nodes[node] = GROUPING;
+            nodes[node + 1] = expression;
+            return node;
+        }
+
+        @Override
+        public Integer visitLiteralExpr(Expr.Literal expr) {
+            int node = allocate(2);
+            nodes[node] = LITERAL;
+            nodes[node + 1] = constant(expr.value);
+            return node;
+        }
+
+        @Override
+        public Integer visitLogicalExpr(Expr.Logical expr) {
+            int left = expr(expr.left);
+            int right = expr(expr.right);
+            int node = allocate(4);
+            nodes[node] = LOGICAL;
+            nodes[node + 1] = left;
+            nodes[node + 2] = token(expr.operator);
+            nodes[node + 3] = right;
+            return node;
+        }
+
+        @Override
+        public Integer visitSetExpr(Expr.Set expr) {
+            int object = expr(expr.object);
+            int value = expr(expr.value);
+            int node = allocate(4);
+            nodes[node] = SET;
+            nodes[node + 1] = object;
+            nodes[node + 2] = token(expr.name);
+            nodes[node + 3] = value;
+            return node;
+        }
+
+        @Override
+        public Integer visitThisExpr(Expr.This expr) {
+            int node = allocate(2);
+            nodes[node] = THIS;
+            nodes[node + 1] = token(expr.keyword);
+            return node;
+        }
+
+        @Override
+        public Integer visitUnaryExpr(Expr.Unary expr) {
+            int right = expr(expr.right);
+            int node = allocate(3);
+            nodes[node] = UNARY;
+            nodes[node + 1] = token(expr.operator);
+            nodes[node + 2] = right;
+            return node;
+        }
+
+        @Override
+        public Integer visitVariableExpr(Expr.Variable expr) {
+            int node = allocate(2);
+            nodes[node] = VARIABLE;
+            nodes[node + 1] = token(expr.name);
+            return node;
+        }
+
+        @Override
+        public Integer visitLambdaExpr(Expr.Lambda expr) {
+            int params = tokens(expr.params);
+            int body = stmts(expr.body);
+            int node = allocate(5);
+            nodes[node] = LAMBDA;
+            nodes[node + 1] = token(expr.name);
+            nodes[node + 2] = params;
+            nodes[node + 3] = body;
+            nodes[node + 4] = expr.isGenerator ? 1 : 0;
+            return node;
+        }
+
+        @Override
+        public Integer visitArrayExpr(Expr.Array expr) {
+            int elements = exprs(expr.elements);
+            int node = allocate(3);
+            nodes[node] = ARRAY;
+            nodes[node + 1] = token(expr.bracket);
+            nodes[node + 2] = elements;
+            return node;
+        }
+
+        @Override
+        public Integer visitIndexExpr(Expr.Index expr) {
+            int object = expr(expr.object);
+            int index = expr(expr.index);
+            int node = allocate(4);
+            nodes[node] = INDEX;
+            nodes[node + 1] = object;
+            nodes[node + 2] = token(expr.bracket);
+            nodes[node + 3] = index;
+            return node;
+        }
+
+        @Override
+        public Integer visitIndexSetExpr(Expr.IndexSet expr) {
+            int object = expr(expr.object);
+            int index = expr(expr.index);
+            int value = expr(expr.value);
+            int node = allocate(5);
+            nodes[node] = INDEX_SET;
+            nodes[node + 1] = object;
+            nodes[node + 2] = token(expr.bracket);
+            nodes[node + 3] = index;
+            nodes[node + 4] = value;
+            return node;
+        }
+
+        @Override
+        public Integer visitBlockStmt(Stmt.Block stmt) {
+            int statements = stmts(stmt.statements);
+            int node = allocate(2);
+            nodes[node] = BLOCK;
+            nodes[node + 1] = statements;
+            return node;
+        }
+
+        @Override
+        public Integer visitClassStmt(Stmt.Class stmt) {
+            int methods = stmts(stmt.methods);
+            int staticMethods = stmts(stmt.staticMethods);
+            int node = allocate(4);
+            nodes[node] = CLASS;
+            nodes[node + 1] = token(stmt.name);
+            nodes[node + 2] = methods;
+            nodes[node + 3] = staticMethods;
+            return node;
+        }
+
+        @Override
+        public Integer visitExpressionStmt(Stmt.Expression stmt) {
+            int expression = expr(stmt.expression);
+            int node = allocate(2);
+            nodes[node] = EXPRESSION;
+            nodes[node + 1] = expression;
+            return node;
+        }
+
+        @Override
+        public Integer visitFunctionStmt(Stmt.Function stmt) {
+            int params = tokens(stmt.params);
+            int body = stmts(stmt.body);
+            int node = allocate(6);
+            nodes[node] = FUNCTION;
+            nodes[node + 1] = token(stmt.name);
+            nodes[node + 2] = params;
+            nodes[node + 3] = body;
+            nodes[node + 4] = stmt.isGenerator ? 1 : 0;
+            nodes[node + 5] = stmt.isPure ? 1 : 0;
+            return node;
+        }
+
+        @Override
+        public Integer visitIfStmt(Stmt.If stmt) {
+            int condition = expr(stmt.condition);
+            int thenBranch = stmt(stmt.thenBranch);
+            int elseBranch = stmt(stmt.elseBranch);
+            int node = allocate(4);
+            nodes[node] = IF;
+            nodes[node + 1] = condition;
+            nodes[node + 2] = thenBranch;
+            nodes[node + 3] = elseBranch;
+            return node;
+        }
+
+        @Override
+        public Integer visitWhileStmt(Stmt.While stmt) {
+            int condition = expr(stmt.condition);
+            int body = stmt(stmt.body);
+            int node = allocate(4);
+            nodes[node] = WHILE;
+            nodes[node + 1] = token(stmt.keyword);
+            nodes[node + 2] = condition;
+            nodes[node + 3] = body;
+            return node;
+        }
+
+        @Override
+        public Integer visitPrintStmt(Stmt.Print stmt) {
+            int expression = expr(stmt.expression);
+            int node = allocate(2);
+            nodes[node] = PRINT;
+            nodes[node + 1] = expression;
+            return node;
+        }
+
+        @Override
+        public Integer visitReturnStmt(Stmt.Return stmt) {
+            int value = expr(stmt.value);
+            int node = allocate(3);
+            nodes[node] = RETURN;
+            nodes[node + 1] = token(stmt.keyword);
+            nodes[node + 2] = value;
+            return node;
+        }
+
+        @Override
+        public Integer visitVarStmt(Stmt.Var stmt) {
+            int initializer = expr(stmt.initializer);
+            int node = allocate(3);
+            nodes[node] = VAR;
+            nodes[node + 1] = token(stmt.name);
+            nodes[node + 2] = initializer;
+            return node;
+        }
+
+        @Override
+        public Integer visitMultiVarStmt(Stmt.MultiVar stmt) {
+            int vars = stmts(stmt.vars);
+            int node = allocate(2);
+            nodes[node] = MULTI_VAR;
+            nodes[node + 1] = vars;
+            return node;
+        }
+
+        @Override
+        public Integer visitYieldStmt(Stmt.Yield stmt) {
+            int value = expr(stmt.value);
+            int node = allocate(3);
+            nodes[node] = YIELD;
+            nodes[node + 1] = token(stmt.keyword);
+            nodes[node + 2] = value;
+            return node;
+        }
+
+        @Override
+        public Integer visitForInStmt(Stmt.ForIn stmt) {
+            int iterable = expr(stmt.iterable);
+            int body = stmt(stmt.body);
+            int node = allocate(4);
+            nodes[node] = FOR_IN;
+            nodes[node + 1] = token(stmt.name);
+            nodes[node + 2] = iterable;
+            nodes[node + 3] = body;
+            return node;
+        }
+
+        @Override
+        public Integer visitImportStmt(Stmt.Import stmt) {
+            int node = allocate(3);
+            nodes[node] = IMPORT;
+            nodes[node + 1] = token(stmt.keyword);
+            nodes[node + 2] = token(stmt.path);
+            return node;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package lox;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how long a script may run. Interpreters count loop iterations and
+ * function calls locally and only charge them here once every
+ * {@link #CHECK_INTERVAL} steps, so the shared state (an atomic counter, a
+ * clock read and a volatile flag) stays off the hot path.
+ */
+class Budget {
+
+    static final int CHECK_INTERVAL = 1024;
+
+    private final AtomicLong steps;
+    private final long deadline;
+    private volatile boolean cancelled = false;
+
+    /**
+     * @param maxSteps loop iterations and calls allowed, or 0 for no limit
+     * @param maxMillis wall time allowed from now, or 0 for no limit
+     */
+    Budget(long maxSteps, long maxMillis) {
+        this.steps = new AtomicLong(maxSteps > 0 ? maxSteps : Long.MAX_VALUE);
+        this.deadline = maxMillis > 0 ? System.nanoTime() + maxMillis * 1_000_000 : 0;
+    }
+
+    static Budget unlimited() {
+        return new Budget(0, 0);
+    }
+
+    /**
+     * Stops the script at its next check. Safe to call from any thread.
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    void charge(Token token, int count) {
+        if (cancelled) {
+            throw new RuntimeError(token, "Execution cancelled.");
+        }
+
+        if (steps.addAndGet(-count) < 0) {
+            throw new RuntimeError(token, "Execution step limit exceeded.");
+        }
+
+        if (deadline != 0 && System.nanoTime() - deadline > 0) {
+            throw new RuntimeError(token, "Execution time limit exceeded.");
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The text of a script being edited, such as an editor buffer, kept parsed
+ * as it changes. Every top-level statement remembers the span of source it
+ * came from, and an edit re-scans and re-parses only the statements around
+ * it, reusing the Stmt trees of everything else.
+ *
+ * <p>Re-parsing starts at the statement before the edit and stops at the
+ * first old statement after it that the new tokens line up with again: the
+ * scan reaches the start of that statement outside any token or comment,
+ * and no statement parsed on the way ran into the end of the text scanned.
+ * When they do not line up, as after removing a brace or opening a string,
+ * the text up to an old statement twice as far on is tried, and so on up
+ * to the end. The statements after the stopping point keep their trees;
+ * their offsets move with the edit, and their token lines with the lines
+ * it added or removed. Not thread safe.
+ */
+class Document {
+
+    private static class Entry {
+        int start;
+        int end;
+        int line;
+
+        /**
+         * Lines the tokens of stmt are still to be moved by, since edits
+         * above it added or removed lines; see {@link #statements()}.
+         */
+        int shift = 0;
+
+        final Stmt stmt;
+        final Token[] tokens;
+        boolean valid;
+
+        Entry(int start, int end, int line, Stmt stmt, Token[] tokens, boolean valid) {
+            this.start = start;
+            this.end = end;
+            this.line = line;
+            this.stmt = stmt;
+            this.tokens = tokens;
+            this.valid = valid;
+        }
+    }
+
+    private char[] text;
+    private int size;
+    private final List<Entry> entries = new ArrayList<>();
+
+    Document(String text) {
+        this.text = text.toCharArray();
+        size = text.length();
+        entries.addAll(parse(0, 1, size));
+    }
+
+    String text() {
+        return new String(text, 0, size);
+    }
+
+    /**
+     * Replaces length characters at offset with replacement.
+     */
+    void edit(int offset, int length, String replacement) {
+        int lines = lines(replacement) - lines(offset, offset + length);
+        replace(offset, length, replacement);
+        int delta = replacement.length() - length;
+
+        // the statement before the edit is re-parsed too, since it may take
+        // in the edited text, or look at the token after it for an else
+        int first = 0;
+        while (first < entries.size() && entries.get(first).end < offset) first++;
+        first = Math.max(0, first - 1);
+
+        // the statements starting after the removed text are kept, unless
+        // the new tokens do not line up with one of them
+        int next = first;
+        while (next < entries.size() && entries.get(next).start < offset + length) next++;
+        for (int i = next; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            entry.start += delta;
+            entry.end += delta;
+            entry.line += lines;
+            entry.shift += lines;
+        }
+
+        int start = first == 0 ? 0 : entries.get(first).start;
+        int line = first == 0 ? 1 : entries.get(first).line;
+
+        int stop = next;
+        List<Entry> parsed;
+        for (int step = 1; ; step *= 2) {
+            parsed = parse(start, line, stop < entries.size() ? entries.get(stop).start : size);
+            if (parsed != null) break;
+
+            stop = (int) Math.min(entries.size(), (long) stop + step);
+        }
+
+        entries.subList(first, stop).clear();
+        entries.addAll(first, parsed);
+    }
+
+    /**
+     * The statements of the document, or null if it has syntax errors.
+     */
+    List<Stmt> statements() {
+        List<Stmt> statements = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            if (!entry.valid) return null;
+
+            if (entry.shift != 0) {
+                for (Token token : entry.tokens) {
+                    token.line += entry.shift;
+                }
+                entry.shift = 0;
+            }
+            statements.add(entry.stmt);
+        }
+        return statements;
+    }
+
+    /**
+     * Resolves the document, or returns null if it has any errors.
+     */
+    Program compile() {
+        List<Stmt> statements = statements();
+        if (statements == null) return null;
+
+        return Lox.resolve(statements);
+    }
+
+    private void replace(int offset, int length, String replacement) {
+        int grown = size - length + replacement.length();
+        if (grown > text.length) {
+            text = Arrays.copyOf(text, Math.max(grown, text.length * 2));
+        }
+
+        System.arraycopy(text, offset + length, text, offset + replacement.length(), size - offset - length);
+        replacement.getChars(0, replacement.length(), text, offset);
+        size = grown;
+    }
+
+    /**
+     * Scans and parses the text from start, which begins on line, up to the
+     * statement at stop. Returns null if the tokens do not line up with a
+     * statement there: the scan ran past stop, or a statement ran into stop
+     * and may go on differently in the text after it.
+     */
+    private List<Entry> parse(int start, int line, int stop) {
+        Scanner scanner = new Scanner(text, start, size, line);
+        TokenBuffer tokens = scanner.scanBuffer(stop);
+        boolean atEnd = stop == size;
+        if (!atEnd && scanner.position() != stop) return null;
+
+        tokens.keepTokens();
+        Parser parser = new Parser(tokens);
+        List<Entry> parsed = new ArrayList<>();
+        while (tokens.peekType() != TokenType.EOF) {
+            int from = tokens.position();
+            int index = tokens.index();
+            int firstLine = tokens.line();
+            int errors = Lox.errors();
+
+            Stmt stmt = parser.parseDeclaration();
+            if (!atEnd && tokens.reachedEnd()) return null;
+
+            boolean valid = stmt != null && Lox.errors() == errors;
+            parsed.add(new Entry(from, tokens.previousEnd(), firstLine, stmt,
+                    tokens.built(index, tokens.index()), valid));
+        }
+
+        // a scan error belongs to the last statement starting before it, or
+        // the first if it comes before them all, so that it goes away when
+        // the statement it belongs to is re-parsed
+        List<Integer> errors = scanner.errorPositions();
+        scanner.reportErrors();
+        for (int error : errors) {
+            if (parsed.isEmpty()) parsed.add(new Entry(start, stop, line, null, new Token[0], false));
+
+            int i = parsed.size() - 1;
+            while (i > 0 && parsed.get(i).start > error) i--;
+            parsed.get(i).valid = false;
+        }
+        return parsed;
+    }
+
+    private int lines(int from, int to) {
+        int lines = 0;
+        for (int i = from; i < to; i++) {
+            if (text[i] == '\n') lines++;
+        }
+        return lines;
+    }
+
+    private static int lines(String text) {
+        int lines = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') lines++;
+        }
+        return lines;
+    }
+}
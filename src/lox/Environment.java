@@ -1,7 +1,6 @@
 package lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Deque;
 
 /**
  * @author chenpeng
@@ -11,14 +10,58 @@ class Environment {
 
     private final Environment enclosing;
 
-    private final Map<String, Object> values = new HashMap<>();
-
+    /**
+     * The interpreter that created this scope, used to stop parallel workers
+     * from writing to scopes they share with other threads.
+     */
+    final Interpreter owner;
+
+    /**
+     * Replaced by a shared map once a task captures this scope; see
+     * {@link #share()}.
+     */
+    private SymbolMap values;
+
+    /**
+     * The globals, which tasks running on other threads read and assign
+     * while the script that spawned them goes on defining more.
+     */
     Environment() {
         enclosing = null;
+        owner = null;
+        values = new SharedSymbolMap();
     }
 
     Environment(Environment environment) {
+        this(environment, null);
+    }
+
+    Environment(Environment environment, Interpreter owner) {
         enclosing = environment;
+        this.owner = owner;
+        values = new SymbolMap();
+    }
+
+    /**
+     * Makes this scope and the scopes enclosing it safe for a task on
+     * another thread to use, adding the values they hold to reached. Called
+     * by the spawning thread before the task starts, so the task sees the
+     * shared maps from the first.
+     */
+    void share(Deque<Object> reached) {
+        for (Environment environment = this; environment != null; environment = environment.enclosing) {
+            SymbolMap shared = environment.values.share(reached);
+            // the enclosing scopes of a shared scope are shared already
+            if (shared == environment.values) return;
+            environment.values = shared;
+        }
+    }
+
+    /**
+     * Adds the values defined in this scope alone to values.
+     */
+    void addValues(Deque<Object> values) {
+        this.values.addValues(values);
     }
 
     Environment ancestor(int distance) {
@@ -31,12 +74,16 @@ class Environment {
     }
 
     void define(String name, Object value) {
-        values.put(name, value);
+        values.put(Symbols.intern(name), value);
+    }
+
+    void define(int symbol, Object value) {
+        values.put(symbol, value);
     }
 
     Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
+        if (values.containsKey(name.symbol)) {
+            return values.get(name.symbol);
         }
 
         if (enclosing != null) {
@@ -47,8 +94,8 @@ class Environment {
     }
 
     void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
+        if (values.containsKey(name.symbol)) {
+            values.put(name.symbol, value);
             return;
         }
 
@@ -61,11 +108,11 @@ class Environment {
     }
 
 
-    Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+    Object getAt(int distance, int symbol) {
+        return ancestor(distance).values.get(symbol);
     }
 
     void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+        ancestor(distance).values.put(name.symbol, value);
     }
 }
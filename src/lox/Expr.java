@@ -2,7 +2,23 @@ package lox;
 
 import java.util.List;
 
-abstract class Expr {
+abstract sealed class Expr permits
+        Expr.Assign,
+        Expr.Ternary,
+        Expr.Binary,
+        Expr.Call,
+        Expr.Get,
+        Expr.Grouping,
+        Expr.Literal,
+        Expr.Logical,
+        Expr.Set,
+        Expr.This,
+        Expr.Unary,
+        Expr.Variable,
+        Expr.Lambda,
+        Expr.Array,
+        Expr.Index,
+        Expr.IndexSet {
     interface Visitor<R> {
         R visitAssignExpr(Assign expr);
         R visitTernaryExpr(Ternary expr);
@@ -17,10 +33,41 @@ abstract class Expr {
         R visitUnaryExpr(Unary expr);
         R visitVariableExpr(Variable expr);
         R visitLambdaExpr(Lambda expr);
+        R visitArrayExpr(Array expr);
+        R visitIndexExpr(Index expr);
+        R visitIndexSetExpr(IndexSet expr);
     }
 
-    static class Assign extends Expr {
+    static final int ASSIGN = 0;
+    static final int TERNARY = 1;
+    static final int BINARY = 2;
+    static final int CALL = 3;
+    static final int GET = 4;
+    static final int GROUPING = 5;
+    static final int LITERAL = 6;
+    static final int LOGICAL = 7;
+    static final int SET = 8;
+    static final int THIS = 9;
+    static final int UNARY = 10;
+    static final int VARIABLE = 11;
+    static final int LAMBDA = 12;
+    static final int ARRAY = 13;
+    static final int INDEX = 14;
+    static final int INDEX_SET = 15;
+
+    /**
+     * Which node class this is, so hot paths can dispatch with a switch
+     * instead of a virtual accept call.
+     */
+    final int kind;
+
+    Expr(int kind) {
+        this.kind = kind;
+    }
+
+    static final class Assign extends Expr {
         Assign(Token name, Expr value) {
+            super(ASSIGN);
             this.name = name;
             this.value = value;
         }
@@ -34,8 +81,9 @@ abstract class Expr {
         final Expr value;
     }
 
-    static class Ternary extends Expr {
+    static final class Ternary extends Expr {
         Ternary(Expr condition, Expr thenBranch, Expr elseBranch) {
+            super(TERNARY);
             this.condition = condition;
             this.thenBranch = thenBranch;
             this.elseBranch = elseBranch;
@@ -51,8 +99,9 @@ abstract class Expr {
         final Expr elseBranch;
     }
 
-    static class Binary extends Expr {
+    static final class Binary extends Expr {
         Binary(Expr left, Token operator, Expr right) {
+            super(BINARY);
             this.left = left;
             this.operator = operator;
             this.right = right;
@@ -68,8 +117,9 @@ abstract class Expr {
         final Expr right;
     }
 
-    static class Call extends Expr {
+    static final class Call extends Expr {
         Call(Expr callee, Token paren, List<Expr> arguments) {
+            super(CALL);
             this.callee = callee;
             this.paren = paren;
             this.arguments = arguments;
@@ -85,8 +135,9 @@ abstract class Expr {
         final List<Expr> arguments;
     }
 
-    static class Get extends Expr {
+    static final class Get extends Expr {
         Get(Expr object, Token name) {
+            super(GET);
             this.object = object;
             this.name = name;
         }
@@ -100,8 +151,9 @@ abstract class Expr {
         final Token name;
     }
 
-    static class Grouping extends Expr {
+    static final class Grouping extends Expr {
         Grouping(Expr expression) {
+            super(GROUPING);
             this.expression = expression;
         }
 
@@ -113,8 +165,9 @@ abstract class Expr {
         final Expr expression;
     }
 
-    static class Literal extends Expr {
+    static final class Literal extends Expr {
         Literal(Object value) {
+            super(LITERAL);
             this.value = value;
         }
 
@@ -126,8 +179,9 @@ abstract class Expr {
         final Object value;
     }
 
-    static class Logical extends Expr {
+    static final class Logical extends Expr {
         Logical(Expr left, Token operator, Expr right) {
+            super(LOGICAL);
             this.left = left;
             this.operator = operator;
             this.right = right;
@@ -143,8 +197,9 @@ abstract class Expr {
         final Expr right;
     }
 
-    static class Set extends Expr {
+    static final class Set extends Expr {
         Set(Expr object, Token name, Expr value) {
+            super(SET);
             this.object = object;
             this.name = name;
             this.value = value;
@@ -160,8 +215,9 @@ abstract class Expr {
         final Expr value;
     }
 
-    static class This extends Expr {
+    static final class This extends Expr {
         This(Token keyword) {
+            super(THIS);
             this.keyword = keyword;
         }
 
@@ -173,8 +229,9 @@ abstract class Expr {
         final Token keyword;
     }
 
-    static class Unary extends Expr {
+    static final class Unary extends Expr {
         Unary(Token operator, Expr right) {
+            super(UNARY);
             this.operator = operator;
             this.right = right;
         }
@@ -188,8 +245,9 @@ abstract class Expr {
         final Expr right;
     }
 
-    static class Variable extends Expr {
+    static final class Variable extends Expr {
         Variable(Token name) {
+            super(VARIABLE);
             this.name = name;
         }
 
@@ -201,11 +259,13 @@ abstract class Expr {
         final Token name;
     }
 
-    static class Lambda extends Expr {
-        Lambda(Token name, List<Token> params, List<Stmt> body) {
+    static final class Lambda extends Expr {
+        Lambda(Token name, List<Token> params, List<Stmt> body, boolean isGenerator) {
+            super(LAMBDA);
             this.name = name;
             this.params = params;
             this.body = body;
+            this.isGenerator = isGenerator;
         }
 
         @Override
@@ -216,6 +276,61 @@ abstract class Expr {
         final Token name;
         final List<Token> params;
         final List<Stmt> body;
+        final boolean isGenerator;
+    }
+
+    static final class Array extends Expr {
+        Array(Token bracket, List<Expr> elements) {
+            super(ARRAY);
+            this.bracket = bracket;
+            this.elements = elements;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitArrayExpr(this);
+        }
+
+        final Token bracket;
+        final List<Expr> elements;
+    }
+
+    static final class Index extends Expr {
+        Index(Expr object, Token bracket, Expr index) {
+            super(INDEX);
+            this.object = object;
+            this.bracket = bracket;
+            this.index = index;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitIndexExpr(this);
+        }
+
+        final Expr object;
+        final Token bracket;
+        final Expr index;
+    }
+
+    static final class IndexSet extends Expr {
+        IndexSet(Expr object, Token bracket, Expr index, Expr value) {
+            super(INDEX_SET);
+            this.object = object;
+            this.bracket = bracket;
+            this.index = index;
+            this.value = value;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitIndexSetExpr(this);
+        }
+
+        final Expr object;
+        final Token bracket;
+        final Expr index;
+        final Expr value;
     }
 
 
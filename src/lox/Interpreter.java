@@ -1,7 +1,11 @@
 package lox;
 
+import java.io.IOException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -12,13 +16,51 @@ import java.util.Map;
  */
 public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
 
-    final Environment globals = new Environment();
+    final Environment globals;
 
-    private Environment environment = globals;
+    /**
+     * The current scope. Generators move it in and out of the scopes of
+     * their body as they suspend and resume.
+     */
+    Environment environment;
 
-    private Map<Expr, Integer> locals = new HashMap<>();
+    /**
+     * Resolved scope distances of the program whose code is running. Each
+     * function keeps those of the program it was declared in and swaps them
+     * in while it runs, so they are dropped along with the program.
+     */
+    Map<Expr, Integer> locals;
+
+    /**
+     * Set for parallel workers, which may only assign variables in scopes
+     * they created themselves.
+     */
+    private final boolean isolated;
+
+    final Output output;
+
+    private Budget budget;
+
+    private int countdown = Budget.CHECK_INTERVAL;
+
+    /**
+     * How deep operator chains may nest through their left operands before
+     * the rest of the chain is walked with a loop instead of recursion.
+     */
+    private static final int MAX_CHAIN_DEPTH = 256;
+
+    private int chainDepth = 0;
+    private Expr[] chain = new Expr[0];
+    private int chainTop = 0;
 
     Interpreter() {
+        globals = new Environment();
+        environment = globals;
+        locals = Collections.emptyMap();
+        isolated = false;
+        budget = Budget.unlimited();
+        output = Output.stdout();
+
         globals.define("clock", new LoxCallable() {
             @Override
             public int arity() {
@@ -44,10 +86,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
 
             @Override
             public Object call(Interpreter interpreter, List<Object> arguments) {
-                for (Object o : arguments) {
-                    System.out.print(stringify(o));
-                }
-                System.out.println();
+                interpreter.output.println(stringify(arguments.get(0)));
                 return null;
             }
 
@@ -56,14 +95,227 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
                 return "<native fn print>";
             }
         });
+
+        globals.define("sleep", new NativeFunction("sleep", 1, (interpreter, arguments) -> {
+            Object seconds = arguments.get(0);
+            if (!(seconds instanceof Double) || !((double) seconds >= 0.0)) {
+                throw new RuntimeError("Sleep time must be a non-negative number.");
+            }
+
+            try {
+                Thread.sleep((long) ((double) seconds * 1000.0));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        }));
+
+        globals.define("spawn", new NativeFunction("spawn", 1, (interpreter, arguments) -> {
+            Object callee = arguments.get(0);
+            if (!(callee instanceof LoxCallable) || ((LoxCallable) callee).arity() != 0) {
+                throw new RuntimeError("Can only spawn a function that takes no arguments.");
+            }
+            return LoxTask.spawn(interpreter, (LoxCallable) callee);
+        }));
+
+        globals.define("len", new NativeFunction("len", 1, (interpreter, arguments) -> {
+            Object value = arguments.get(0);
+            if (value instanceof LoxArray) return (double) ((LoxArray) value).length();
+            if (value instanceof LoxMap) return (double) ((LoxMap) value).size();
+            if (value instanceof MappedArray) return (double) ((MappedArray) value).length();
+            if (value instanceof String) return (double) ((String) value).length();
+
+            throw new RuntimeError("Can only take the length of arrays, maps and strings.");
+        }));
+
+        globals.define("push", new NativeFunction("push", 2, (interpreter, arguments) -> {
+            Object array = arguments.get(0);
+            if (!(array instanceof LoxArray)) throw new RuntimeError("Can only push onto an array.");
+
+            interpreter.checkOwner(((LoxArray) array).owner, "array");
+            ((LoxArray) array).append(arguments.get(1));
+            return null;
+        }));
+
+        globals.define("mapDoubles", new NativeFunction("mapDoubles", 1, (interpreter, arguments) -> {
+            Object path = arguments.get(0);
+            if (!(path instanceof String)) throw new RuntimeError("File path must be a string.");
+
+            try {
+                return MappedArray.map(Paths.get((String) path));
+            } catch (IOException | InvalidPathException e) {
+                throw new RuntimeError(String.format("Cannot map '%s': %s", path, e.getMessage()));
+            }
+        }));
+
+        globals.define("streamLines", new NativeFunction("streamLines", 1, (interpreter, arguments) -> {
+            Object path = arguments.get(0);
+            if (!(path instanceof String)) throw new RuntimeError("File path must be a string.");
+
+            try {
+                return LoxStream.lines(Paths.get((String) path));
+            } catch (InvalidPathException e) {
+                throw new RuntimeError(String.format("Cannot read '%s': %s", path, e.getMessage()));
+            }
+        }));
+
+        globals.define("streamMap", new NativeFunction("streamMap", 2, (interpreter, arguments) ->
+                LoxStream.of(arguments.get(0)).map(NativeFunction.callable(arguments.get(1), 1))));
+
+        globals.define("streamFilter", new NativeFunction("streamFilter", 2, (interpreter, arguments) ->
+                LoxStream.of(arguments.get(0)).filter(NativeFunction.callable(arguments.get(1), 1))));
+
+        globals.define("streamTake", new NativeFunction("streamTake", 2, (interpreter, arguments) -> {
+            Object count = arguments.get(1);
+            if (!(count instanceof Double)) throw new RuntimeError("Count must be a number.");
+
+            return LoxStream.of(arguments.get(0)).take((long) (double) count);
+        }));
+
+        globals.define("streamForEach", new NativeFunction("streamForEach", 2, (interpreter, arguments) -> {
+            LoxStream.of(arguments.get(0)).forEach(interpreter, NativeFunction.callable(arguments.get(1), 1));
+            return null;
+        }));
+
+        globals.define("streamHasNext", new NativeFunction("streamHasNext", 1, (interpreter, arguments) ->
+                generator(arguments.get(0)).hasNext()));
+
+        globals.define("streamNext", new NativeFunction("streamNext", 1, (interpreter, arguments) ->
+                generator(arguments.get(0)).next()));
+
+        globals.define("memoStats", new NativeFunction("memoStats", 1, (interpreter, arguments) -> {
+            Object function = arguments.get(0);
+            if (!(function instanceof LoxFunction) || ((LoxFunction) function).memo == null) {
+                throw new RuntimeError("Expect a pure function.");
+            }
+            return ((LoxFunction) function).memo.stats(interpreter);
+        }));
+
+        // Map operations are prefixed so they leave names like get and size free for scripts.
+        globals.define("Map", new NativeFunction("Map", 0, (interpreter, arguments) -> new LoxMap(interpreter)));
+
+        globals.define("mapGet", new NativeFunction("mapGet", 2, (interpreter, arguments) ->
+                map(arguments.get(0)).get(arguments.get(1))));
+
+        globals.define("mapPut", new NativeFunction("mapPut", 3, (interpreter, arguments) -> {
+            LoxMap map = map(arguments.get(0));
+            interpreter.checkOwner(map.owner, "map");
+            map.put(arguments.get(1), arguments.get(2));
+            return null;
+        }));
+
+        globals.define("mapHas", new NativeFunction("mapHas", 2, (interpreter, arguments) ->
+                map(arguments.get(0)).containsKey(arguments.get(1))));
+
+        globals.define("mapRemove", new NativeFunction("mapRemove", 2, (interpreter, arguments) -> {
+            LoxMap map = map(arguments.get(0));
+            interpreter.checkOwner(map.owner, "map");
+            return map.remove(arguments.get(1));
+        }));
+
+        globals.define("mapSize", new NativeFunction("mapSize", 1, (interpreter, arguments) ->
+                (double) map(arguments.get(0)).size()));
+
+        globals.define("mapKeys", new NativeFunction("mapKeys", 1, (interpreter, arguments) ->
+                map(arguments.get(0)).keys(interpreter)));
+
+        globals.define("mapValues", new NativeFunction("mapValues", 1, (interpreter, arguments) ->
+                map(arguments.get(0)).values(interpreter)));
+
+        globals.define("parallelMap", new NativeFunction("parallelMap", 2, (interpreter, arguments) ->
+                Parallel.map(interpreter, NativeFunction.callable(arguments.get(0), 1), arguments.get(1))));
+
+        globals.define("parallelReduce", new NativeFunction("parallelReduce", 3, (interpreter, arguments) ->
+                Parallel.reduce(interpreter, NativeFunction.callable(arguments.get(0), 2),
+                        arguments.get(1), arguments.get(2))));
+
+        globals.define("await", new NativeFunction("await", 1, (interpreter, arguments) -> {
+            Object task = arguments.get(0);
+            if (!(task instanceof LoxTask)) throw new RuntimeError("Can only await a task.");
+
+            return ((LoxTask) task).await();
+        }));
+    }
+
+    private static LoxGenerator generator(Object value) {
+        if (value instanceof LoxGenerator) return (LoxGenerator) value;
+
+        throw new RuntimeError("Expect a generator.");
+    }
+
+    private static LoxMap map(Object value) {
+        if (value instanceof LoxMap) return (LoxMap) value;
+
+        throw new RuntimeError("Expect a map.");
     }
 
-    void interpreterExpr(Expr expression) {
+    /**
+     * An interpreter with its own execution state that shares the globals
+     * and resolved locals of parent, for running code on another thread.
+     */
+    Interpreter(Interpreter parent) {
+        this(parent, parent.isolated);
+    }
+
+    Interpreter(Interpreter parent, boolean isolated) {
+        globals = parent.globals;
+        environment = globals;
+        locals = parent.locals;
+        this.isolated = isolated;
+        budget = parent.budget;
+        output = parent.output;
+    }
+
+    /**
+     * Limits the code run from now on, including tasks and parallel workers
+     * it starts.
+     */
+    void limit(Budget budget) {
+        this.budget = budget;
+    }
+
+    void cancel() {
+        budget.cancel();
+    }
+
+    /**
+     * Counts one step against the budget. Called on each loop iteration and
+     * function call; only every CHECK_INTERVAL-th step touches the budget.
+     */
+    void tick(Token token) {
+        if (--countdown > 0) return;
+
+        countdown = Budget.CHECK_INTERVAL;
+        budget.charge(token, Budget.CHECK_INTERVAL);
+    }
+
+    /**
+     * Runs a program of one expression statement, as typed at the prompt,
+     * and prints its value.
+     */
+    void interpreterExpr(Program program) {
+        Map<Expr, Integer> previous = locals;
+        locals = program.locals;
         try {
-            Object value = evaluate(expression);
-            System.out.println(stringify(value));
+            Object value = evaluate(((Stmt.Expression) program.statements.get(0)).expression);
+            output.println(stringify(value));
         } catch (RuntimeError e) {
+            // what was printed before the error must reach stdout before it
+            output.flush();
             Lox.runtimeError(e);
+        } finally {
+            locals = previous;
+            output.flush();
+        }
+    }
+
+    void interpreter(Program program) {
+        Map<Expr, Integer> previous = locals;
+        locals = program.locals;
+        try {
+            interpreter(program.statements);
+        } finally {
+            locals = previous;
         }
     }
 
@@ -74,23 +326,25 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
             }
 
         } catch (RuntimeError e) {
+            // what was printed before the error must reach stdout before it
+            output.flush();
             Lox.runtimeError(e);
+        } finally {
+            output.flush();
         }
     }
 
-    private void execute(Stmt stmt) {
+    void execute(Stmt stmt) {
         stmt.accept(this);
     }
 
 
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
-    }
-
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
         Integer distance = locals.get(expr);
+        if (isolated) checkOwnScope(expr.name, distance);
+
         if (distance != null) {
             environment.assignAt(distance, expr.name, value);
         } else {
@@ -100,6 +354,27 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
         return value;
     }
 
+    private void checkOwnScope(Token name, Integer distance) {
+        if (distance != null && environment.ancestor(distance).owner == this) return;
+
+        throw new RuntimeError(name, "Cannot assign to shared variable '"
+                + name.lexeme + "' in a parallel function.");
+    }
+
+    /**
+     * Stops a parallel worker from changing an array, map or instance it did
+     * not create, since its other users may be running on other threads.
+     */
+    void checkOwner(Interpreter owner, String kind) {
+        checkOwner(null, owner, kind);
+    }
+
+    private void checkOwner(Token token, Interpreter owner, String kind) {
+        if (!isolated || owner == this) return;
+
+        throw new RuntimeError(token, "Cannot change a shared " + kind + " in a parallel function.");
+    }
+
     @Override
     public Object visitTernaryExpr(Expr.Ternary expr) {
         Object value = evaluate(expr.condition);
@@ -112,25 +387,82 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
+        Object left;
+        if (isChain(expr.left)) {
+            if (chainDepth >= MAX_CHAIN_DEPTH) return evaluateChain(expr);
+
+            chainDepth++;
+            try {
+                left = evaluate(expr.left);
+            } finally {
+                chainDepth--;
+            }
+        } else {
+            left = evaluate(expr.left);
+        }
 
-        Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
+        return binary(expr.operator, left, right);
+    }
+
+    private static boolean isChain(Expr expr) {
+        return expr instanceof Expr.Binary || expr instanceof Expr.Logical;
+    }
+
+    /**
+     * Evaluates binary and logical operators nested through their left
+     * operands, as in a + b + c, by walking down the chain with a loop, so
+     * machine-generated chains of any length do not overflow the stack.
+     * Only used past MAX_CHAIN_DEPTH; short chains recurse, which is
+     * cheaper. The chain is kept on a stack shared by nested walks.
+     */
+    private Object evaluateChain(Expr expr) {
+        int base = chainTop;
+        Expr operand = expr;
+        while (isChain(operand)) {
+            if (chainTop == chain.length) chain = Arrays.copyOf(chain, Math.max(64, chainTop * 2));
+            chain[chainTop++] = operand;
+            operand = operand instanceof Expr.Binary
+                    ? ((Expr.Binary) operand).left : ((Expr.Logical) operand).left;
+        }
 
-        switch (expr.operator.type) {
+        try {
+            Object value = evaluate(operand);
+            // the right operands may walk chains of their own above ours,
+            // growing the stack, so it is read through the field each time
+            for (int i = chainTop - 1; i >= base; i--) {
+                if (chain[i] instanceof Expr.Binary) {
+                    Expr.Binary binary = (Expr.Binary) chain[i];
+                    value = binary(binary.operator, value, evaluate(binary.right));
+                } else {
+                    Expr.Logical logical = (Expr.Logical) chain[i];
+                    boolean decided = TokenType.OR == logical.operator.type ? isTruthy(value) : !isTruthy(value);
+                    if (!decided) value = evaluate(logical.right);
+                }
+            }
+            return value;
+        } finally {
+            Arrays.fill(chain, base, chainTop, null);
+            chainTop = base;
+        }
+    }
+
+    private Object binary(Token operator, Object left, Object right) {
+        switch (operator.type) {
             case GREATER:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left > (double)right;
             case GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left >= (double)right;
             case LESS:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left < (double)right;
             case LESS_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left <= (double)right;
             case MINUS:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left - (double)right;
             case PLUS:
                 if (left instanceof Double && right instanceof Double) {
@@ -141,15 +473,15 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
                     return (String)left + right;
                 }
 
-                throw new RuntimeError(expr.operator, "Operands must be two numbers " +
+                throw new RuntimeError(operator, "Operands must be two numbers " +
                         "or the first operand must be a string.");
             case STAR:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left * (double)right;
             case SLASH:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
 
-                if ((double)right == 0.0) throw new RuntimeError(expr.operator, "Divide by zero");
+                if ((double)right == 0.0) throw new RuntimeError(operator, "Divide by zero");
 
                 return (double)left / (double)right;
             case BANG_EQUAL:
@@ -157,7 +489,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
             case EQUAL_EQUAL:
                 return isEqual(left, right);
             case MODULO:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left % (double)right;
         }
 
@@ -183,7 +515,12 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
             throw new RuntimeError(expr.paren, String.format("Expect %d arguments but got %d.",
                     function.arity(), arguments.size()));
         }
-        return function.call(this, arguments);
+        try {
+            return function.call(this, arguments);
+        } catch (RuntimeError e) {
+            if (e.token != null) throw e;
+            throw new RuntimeError(expr.paren, e.getMessage());
+        }
     }
 
     @Override
@@ -209,7 +546,19 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
 
     @Override
     public Object visitLogicalExpr(Expr.Logical expr) {
-        Object left = evaluate(expr.left);
+        Object left;
+        if (isChain(expr.left)) {
+            if (chainDepth >= MAX_CHAIN_DEPTH) return evaluateChain(expr);
+
+            chainDepth++;
+            try {
+                left = evaluate(expr.left);
+            } finally {
+                chainDepth--;
+            }
+        } else {
+            left = evaluate(expr.left);
+        }
 
         if (TokenType.OR == expr.operator.type) {
             if (isTruthy(left)) return left;
@@ -228,8 +577,11 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
             throw new RuntimeError(expr.name, "Only instances have fields.");
         }
 
+        LoxInstance instance = (LoxInstance)object;
+        if (isolated) checkOwner(expr.name, instance.owner, "instance");
+
         Object value = evaluate(expr.value);
-        ((LoxInstance)object).set(expr.name, value);
+        instance.set(expr.name, value);
         return null;
     }
 
@@ -268,7 +620,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
     private Object lookUpVariable(Token name, Expr expr) {
         Integer distance = locals.get(expr);
         if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
+            return environment.getAt(distance, name.symbol);
         } else {
             return globals.get(name);
         }
@@ -276,15 +628,99 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
 
     @Override
     public Object visitLambdaExpr(Expr.Lambda expr) {
-        return new LoxFunction(new Stmt.Function(expr.name, expr.params, expr.body), environment, false);
+        return new LoxFunction(new Stmt.Function(expr.name, expr.params, expr.body, expr.isGenerator, false),
+                environment, locals, false);
+    }
+
+
+    @Override
+    public Object visitArrayExpr(Expr.Array expr) {
+        LoxArray array = new LoxArray(expr.elements.size(), this);
+        for (Expr element : expr.elements) {
+            array.append(evaluate(element));
+        }
+        return array;
+    }
+
+    @Override
+    public Object visitIndexExpr(Expr.Index expr) {
+        Object object = evaluate(expr.object);
+        Object index = evaluate(expr.index);
+
+        if (object instanceof LoxArray) {
+            LoxArray array = (LoxArray) object;
+            return array.get((int) arrayIndex(expr.bracket, index, array.length()));
+        }
+
+        if (object instanceof LoxMap) {
+            return ((LoxMap) object).get(index);
+        }
+
+        if (object instanceof MappedArray) {
+            MappedArray array = (MappedArray) object;
+            return array.get(arrayIndex(expr.bracket, index, array.length()));
+        }
+
+        throw new RuntimeError(expr.bracket, "Only arrays and maps can be indexed.");
+    }
+
+    @Override
+    public Object visitIndexSetExpr(Expr.IndexSet expr) {
+        Object object = evaluate(expr.object);
+        Object index = evaluate(expr.index);
+
+        if (object instanceof LoxArray) {
+            LoxArray array = (LoxArray) object;
+            if (isolated) checkOwner(expr.bracket, array.owner, "array");
+            int position = (int) arrayIndex(expr.bracket, index, array.length());
+            Object value = evaluate(expr.value);
+            array.set(position, value);
+            return value;
+        }
+
+        if (object instanceof LoxMap) {
+            LoxMap map = (LoxMap) object;
+            if (isolated) checkOwner(expr.bracket, map.owner, "map");
+            Object value = evaluate(expr.value);
+            map.put(index, value);
+            return value;
+        }
+
+        if (object instanceof MappedArray) {
+            throw new RuntimeError(expr.bracket, "Mapped arrays are read-only.");
+        }
+
+        throw new RuntimeError(expr.bracket, "Only arrays and maps can be indexed.");
     }
 
+    private long arrayIndex(Token bracket, Object index, long length) {
+        if (!(index instanceof Double)) {
+            throw new RuntimeError(bracket, "Array index must be a number.");
+        }
+
+        double value = (double) index;
+        long position = (long) value;
+        if (position != value) {
+            throw new RuntimeError(bracket, "Array index must be an integer.");
+        }
+        if (position < 0 || position >= length) {
+            throw new RuntimeError(bracket, String.format("Array index %d out of bounds for length %d.",
+                    position, length));
+        }
+        return position;
+    }
 
-    private Object evaluate(Expr expr) {
+    /**
+     * Dispatches through accept. A switch on expr.kind, as the resolver
+     * uses, measured slower here: the interpreter's recursion keeps a large
+     * switch method from being inlined, while HotSpot handles the accept
+     * calls well once warm.
+     */
+    Object evaluate(Expr expr) {
         return expr.accept(this);
     }
 
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null) return false;
 
         if (object instanceof Boolean) return (boolean)object;
@@ -314,7 +750,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
     }
 
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) return "nil";
 
         if (object instanceof Double) {
@@ -332,21 +768,21 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
 
     @Override
     public Object visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
+        executeBlock(stmt.statements, new Environment(environment, this));
         return null;
     }
 
     @Override
     public Object visitClassStmt(Stmt.Class stmt) {
-        environment.define(stmt.name.lexeme, null);
+        environment.define(stmt.name.symbol, null);
 
-        Map<String, LoxFunction> methods = new HashMap<>();
+        SymbolMap methods = new SymbolMap();
         for (Stmt.Function method: stmt.methods) {
-            LoxFunction function = new LoxFunction(method, environment, method.name.lexeme.equals("init"));
-            methods.put(method.name.lexeme, function);
+            LoxFunction function = new LoxFunction(method, environment, locals, method.name.symbol == Symbols.INIT);
+            methods.put(method.name.symbol, function);
         }
         for (Stmt.Function method : stmt.staticMethods) {
-            LoxClass.add(method.name.lexeme, new LoxFunction(method, environment, false));
+            LoxClass.add(method.name.symbol, new LoxFunction(method, environment, locals, false));
         }
         LoxClass klass = new LoxClass(stmt.name.lexeme, methods);
         environment.assign(stmt.name, klass);
@@ -374,8 +810,8 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
 
     @Override
     public Object visitFunctionStmt(Stmt.Function stmt) {
-        LoxFunction function = new LoxFunction(stmt, environment, false);
-        environment.define(stmt.name.lexeme, function);
+        LoxFunction function = new LoxFunction(stmt, environment, locals, false);
+        environment.define(stmt.name.symbol, function);
         return null;
     }
 
@@ -393,14 +829,112 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
     public Object visitWhileStmt(Stmt.While stmt) {
         while (isTruthy(evaluate(stmt.condition))) {
             execute(stmt.body);
+            tick(stmt.keyword);
+        }
+        return null;
+    }
+
+    /**
+     * Imported modules have already run, before the script importing them.
+     */
+    @Override
+    public Object visitImportStmt(Stmt.Import stmt) {
+        return null;
+    }
+
+    /**
+     * Runs the body once per element with the loop variable rebound in a
+     * single scope. Arrays, mapped arrays, maps (over a snapshot of their
+     * keys) and generators are walked directly without an iterator object;
+     * instances follow the iterator()/hasNext()/next() protocol. A generator
+     * is closed when the loop is left early.
+     */
+    @Override
+    public Object visitForInStmt(Stmt.ForIn stmt) {
+        Object iterable = evaluate(stmt.iterable);
+        Environment previous = environment;
+        Environment loop = new Environment(environment, this);
+        int name = stmt.name.symbol;
+
+        try {
+            environment = loop;
+
+            if (iterable instanceof LoxArray) {
+                LoxArray array = (LoxArray) iterable;
+                for (int i = 0; i < array.length(); i++) {
+                    loop.define(name, array.isNumeric() ? array.getNumber(i) : array.get(i));
+                    execute(stmt.body);
+                    tick(stmt.name);
+                }
+            } else if (iterable instanceof MappedArray) {
+                MappedArray array = (MappedArray) iterable;
+                for (long i = 0; i < array.length(); i++) {
+                    loop.define(name, array.get(i));
+                    execute(stmt.body);
+                    tick(stmt.name);
+                }
+            } else if (iterable instanceof LoxMap) {
+                LoxArray keys = ((LoxMap) iterable).keys(this);
+                for (int i = 0; i < keys.length(); i++) {
+                    loop.define(name, keys.get(i));
+                    execute(stmt.body);
+                    tick(stmt.name);
+                }
+            } else if (iterable instanceof LoxGenerator) {
+                LoxGenerator generator = (LoxGenerator) iterable;
+                try {
+                    while (generator.hasNext()) {
+                        loop.define(name, generator.next());
+                        execute(stmt.body);
+                        tick(stmt.name);
+                    }
+                } finally {
+                    generator.close();
+                }
+            } else if (iterable instanceof LoxStream) {
+                ((LoxStream) iterable).run(this, value -> {
+                    loop.define(name, value);
+                    execute(stmt.body);
+                    tick(stmt.name);
+                    return true;
+                });
+            } else if (iterable instanceof LoxInstance) {
+                Object iterator = invokeMethod(stmt.name, iterable, "iterator");
+                while (isTruthy(invokeMethod(stmt.name, iterator, "hasNext"))) {
+                    loop.define(name, invokeMethod(stmt.name, iterator, "next"));
+                    execute(stmt.body);
+                    tick(stmt.name);
+                }
+            } else {
+                throw new RuntimeError(stmt.name, "Can only iterate over arrays, maps, streams, " +
+                        "generators and instances with an iterator() method.");
+            }
+        } catch (RuntimeError e) {
+            // natives behind streams and generators raise errors without a token
+            if (e.token != null) throw e;
+            throw new RuntimeError(stmt.name, e.getMessage());
+        } finally {
+            environment = previous;
         }
         return null;
     }
 
+    Object invokeMethod(Token site, Object object, String name) {
+        if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(site, String.format("Expect an instance with a %s() method.", name));
+        }
+
+        Object method = ((LoxInstance) object).get(new Token(TokenType.IDENTIFIER, name, null, site.line));
+        if (!(method instanceof LoxCallable) || ((LoxCallable) method).arity() != 0) {
+            throw new RuntimeError(site, String.format("Expect %s() to be a method without parameters.", name));
+        }
+        return ((LoxCallable) method).call(this, Collections.emptyList());
+    }
+
     @Override
     public Object visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
+        output.println(stringify(value));
         return null;
     }
 
@@ -414,13 +948,22 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
         throw new Return(value);
     }
 
+    /**
+     * Yields are run by the {@link LoxGenerator} whose body they are in, so
+     * one reaching the interpreter is outside any generator.
+     */
+    @Override
+    public Object visitYieldStmt(Stmt.Yield stmt) {
+        throw new RuntimeError(stmt.keyword, "Can only yield inside a generator.");
+    }
+
     @Override
     public Object visitVarStmt(Stmt.Var stmt) {
         Object value = null;
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
         }
-        environment.define(stmt.name.lexeme, value);
+        environment.define(stmt.name.symbol, value);
         return null;
     }
 
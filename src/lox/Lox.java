@@ -3,10 +3,19 @@ package lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import static lox.TokenType.*;
 
@@ -18,18 +27,36 @@ import static lox.TokenType.*;
 public class Lox {
 
     private static final Interpreter interpreter = new Interpreter();
-    private static boolean hadError = false;
-    private static boolean hadRuntimeError = false;
+    static final ScriptCache scripts = new ScriptCache(Long.getLong("lox.cache.bytes", 64L << 20));
+    private static final boolean parallelScan = Boolean.getBoolean("lox.scan.parallel");
+    private static volatile boolean hadError = false;
+    private static volatile boolean hadRuntimeError = false;
+
+    /**
+     * Errors reported by each thread, so that compiles running side by side
+     * can each tell whether they failed.
+     */
+    private static final ThreadLocal<int[]> errors = ThreadLocal.withInitial(() -> new int[1]);
+
+    /**
+     * The modules that have run, so a module imported again, by another
+     * script or at the prompt, is not run twice.
+     */
+    private static final Set<Path> initialised = new HashSet<>();
 
     private static final Set<TokenType> types = Set.of(VAR, IF, WHILE, LEFT_BRACE,
-            PRINT, FUN, FOR, CLASS, RETURN, THIS);
+            PRINT, FUN, PURE, FOR, CLASS, RETURN, THIS);
 
+    /**
+     * Runs the scripts given, in order, each after the modules it imports;
+     * or, with no arguments, starts the prompt.
+     */
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script]");
+        if (args.length > 0 && args[0].startsWith("-")) {
+            System.out.println("Usage: jlox [script...]");
             System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        } else if (args.length > 0) {
+            runFiles(args);
         } else {
             runPrompt();
         }
@@ -38,6 +65,7 @@ public class Lox {
     private static void runPrompt() {
         InputStreamReader input = new InputStreamReader(System.in);
         BufferedReader reader = new BufferedReader(input);
+        interpreter.output.setLineBuffered(true);
 
         for (;;) {
             System.out.print("> ");
@@ -51,66 +79,213 @@ public class Lox {
         }
     }
 
+    /**
+     * Runs a line typed at the prompt. Lines typed before are taken from
+     * the shared {@link ScriptCache}, after the scan that tells statements
+     * from expressions.
+     */
     private static void runPrompt(String source) {
+        int before = errors();
         Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-        if (treatAsStmt(tokens)) {
-            run(tokens);
+        TokenBuffer tokens = scanner.scanBuffer();
+        boolean statement = treatAsStmt(tokens);
+
+        // an expression line is compiled differently from a file with the same text
+        String key = (statement ? "" : "expr:") + ScriptCache.hash(StandardCharsets.UTF_8.encode(source));
+        Program program = scripts.get(key, source.length(), () -> statement
+                ? compile(new Parser(tokens), before)
+                : compileExpression(new Parser(tokens), before));
+        if (program == null) return;
+
+        if (statement) {
+            run(program);
         } else {
-            runExpression(tokens);
+            interpreter.interpreterExpr(program);
         }
-
     }
 
-    private static boolean treatAsStmt(List<Token> tokens) {
-        TokenType first = tokens.get(0).type;
-        return ((IDENTIFIER == first && tokens.get(1).type == EQUAL)
-                || types.contains(first));
+    private static boolean treatAsStmt(TokenBuffer tokens) {
+        TokenType first = tokens.type(0);
+        return ((IDENTIFIER == first && tokens.type(1) == EQUAL)
+                || types.contains(first) || first == IMPORT);
     }
 
-    private static void runExpression(List<Token> tokens) {
-        Expr expression = new Parser(tokens).parseExpr();
-        if (hadError) return;
+    private static void runFiles(String[] paths) throws IOException {
+        long maxSteps = Long.getLong("lox.budget.steps", 0);
+        long maxMillis = Long.getLong("lox.budget.millis", 0);
+        if (maxSteps > 0 || maxMillis > 0) {
+            interpreter.limit(new Budget(maxSteps, maxMillis));
+        }
+
+        List<Path> sources = new ArrayList<>();
+        for (String path : paths) {
+            sources.add(Paths.get(path));
+        }
 
-        interpreter.interpreterExpr(expression);
-    }
+        try {
+            Map<Path, Program> modules = Modules.load(sources, initialised);
+            if (modules != null) run(modules);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
 
-    private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        if (Boolean.getBoolean("lox.cache.stats")) System.err.println(scripts);
 
         if (hadError) System.exit(65);
 
         if (hadRuntimeError) System.exit(70);
     }
 
-    private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-        run(tokens);
+    /**
+     * Runs modules in the order given, stopping at the first runtime error.
+     */
+    private static void run(Map<Path, Program> modules) {
+        for (Map.Entry<Path, Program> module : modules.entrySet()) {
+            initialised.add(module.getKey());
+            interpreter.interpreter(module.getValue());
+            if (hadRuntimeError) return;
+        }
+    }
+
+    /**
+     * Compiles the script, scanning it straight from a mapped view of the
+     * file. A script whose source was seen before is taken from the shared
+     * {@link ScriptCache}, or else from the disk cache if it has not
+     * changed since it was stored there. Scripts too large to map are
+     * streamed through a reader and never cached. Safe to call from several
+     * threads at once.
+     */
+    static Program load(Path source) throws IOException {
+        try (FileChannel channel = FileChannel.open(source)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                return compile(new Scanner(Files.newBufferedReader(source, StandardCharsets.UTF_8)));
+            }
 
+            MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            String hash = ScriptCache.hash(bytes.duplicate());
+            return scripts.get(hash, bytes.remaining(), () -> load(source, bytes, hash));
+        }
     }
 
-    private static void run(List<Token> tokens) {
-        List<Stmt> statements = new Parser(tokens).parse();
+    private static Program load(Path source, ByteBuffer bytes, String hash) {
+        boolean useCache = Boolean.parseBoolean(System.getProperty("lox.cache.disk", "true"));
+        if (!useCache) return compile(bytes);
+
+        Path cache = ProgramFile.pathFor(source);
+
+        Program program = ProgramFile.load(cache, hash);
+        if (program == null) {
+            program = compile(bytes);
+            if (program != null) ProgramFile.store(cache, hash, program);
+        }
+        return program;
+    }
+
+    /**
+     * Compiles UTF-8 source. With lox.scan.parallel set, large sources are
+     * decoded in full and scanned in chunks on several threads; otherwise
+     * the scanner streams through the bytes.
+     */
+    private static Program compile(ByteBuffer bytes) {
+        int before = errors();
+        if (parallelScan && bytes.remaining() >= 2 * ParallelScanner.MIN_CHUNK) {
+            CharBuffer chars = StandardCharsets.UTF_8.decode(bytes);
+            return compile(new Parser(ParallelScanner.scan(chars.array(), chars.limit())), before);
+        }
+        return compile(new Scanner(bytes));
+    }
 
-        if (hadError) return;
+    /**
+     * Runs a statement typed at the prompt, after any modules it imports
+     * from the working directory that have not run yet.
+     */
+    private static void run(Program program) {
+        Map<Path, Program> modules = Modules.imports(Paths.get("").toAbsolutePath(),
+                program.statements, initialised);
+        if (modules == null) return;
 
-        Resolver resolver = new Resolver(interpreter);
+        hadRuntimeError = false;
+        run(modules);
+        if (hadRuntimeError) return;
+
+        interpreter.interpreter(program);
+    }
+
+    /**
+     * Scans, parses and resolves, or returns null if any of those reported
+     * an error. Errors are counted per thread, so sources can be compiled
+     * on several threads at once.
+     */
+    private static Program compile(Scanner scanner) {
+        return compile(new Parser(scanner), errors());
+    }
+
+    /**
+     * Parses and resolves, or returns null if this thread has reported any
+     * error since the count was before.
+     */
+    private static Program compile(Parser parser, int before) {
+        List<Stmt> statements = parser.parse();
+
+        if (errors() != before) return null;
+
+        Resolver resolver = new Resolver();
+        resolver.resolve(statements);
+
+        if (errors() != before) return null; // stop if had resolution error
+
+        return new Program(statements, resolver.locals());
+    }
+
+    /**
+     * Parses and resolves a single expression, as a program of one
+     * expression statement, or returns null on any error.
+     */
+    private static Program compileExpression(Parser parser, int before) {
+        Expr expression = parser.parseExpr();
+
+        if (errors() != before) return null;
+
+        List<Stmt> statements = List.of(new Stmt.Expression(expression));
+        Resolver resolver = new Resolver();
         resolver.resolve(statements);
 
-        if (hadError) return; // stop if had resolution error
+        if (errors() != before) return null;
+
+        return new Program(statements, resolver.locals());
+    }
+
+    /**
+     * Resolves statements that were parsed without errors elsewhere, such as
+     * by a {@link Document}, or returns null if resolving reports any.
+     */
+    static Program resolve(List<Stmt> statements) {
+        int before = errors();
+
+        Resolver resolver = new Resolver();
+        resolver.resolve(statements);
+
+        if (errors() != before) return null;
+
+        return new Program(statements, resolver.locals());
+    }
 
-        interpreter.interpreter(statements);
+    /**
+     * How many errors this thread has reported so far, for callers that
+     * need to tell whether a step of their own reported any.
+     */
+    static int errors() {
+        return errors.get()[0];
     }
 
     static void error(int line, String message) {
         report(line, "", message);
     }
 
-    private static void report(int line, String where, String message) {
+    private static synchronized void report(int line, String where, String message) {
         System.err.println("[line " + line + "] Error" + where + ": " + message);
         hadError = true;
+        errors.get()[0]++;
     }
 
     static void error(Token token, String message) {
@@ -121,8 +296,9 @@ public class Lox {
         }
     }
 
-    static void runtimeError(RuntimeError e) {
-        System.err.println(e.getMessage() + "\n[line " + e.token.line + "]");
+    static synchronized void runtimeError(RuntimeError e) {
+        String where = e.token == null ? "" : "\n[line " + e.token.line + "]";
+        System.err.println(e.getMessage() + where);
         hadRuntimeError = true;
     }
 
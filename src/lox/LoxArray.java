@@ -0,0 +1,110 @@
+package lox;
+
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * A growable array value. Elements are kept unboxed in a double[] while
+ * every element is a number; the first non-number stored moves them to an
+ * Object[] for good.
+ */
+class LoxArray {
+
+    private static final int MIN_CAPACITY = 8;
+
+    /**
+     * The interpreter that created this array, used to stop parallel
+     * workers from writing to arrays they share with other threads.
+     */
+    final Interpreter owner;
+
+    private double[] numbers;
+    private Object[] values;
+    private int size = 0;
+
+    LoxArray(int capacity, Interpreter owner) {
+        numbers = new double[Math.max(capacity, MIN_CAPACITY)];
+        this.owner = owner;
+    }
+
+    LoxArray(Object[] values, Interpreter owner) {
+        this(values.length, owner);
+        for (Object value : values) {
+            append(value);
+        }
+    }
+
+    int length() {
+        return size;
+    }
+
+    /**
+     * True while the elements are stored unboxed.
+     */
+    boolean isNumeric() {
+        return numbers != null;
+    }
+
+    double getNumber(int index) {
+        return numbers[index];
+    }
+
+    Object get(int index) {
+        if (numbers != null) return numbers[index];
+        return values[index];
+    }
+
+    void set(int index, Object value) {
+        if (numbers != null) {
+            if (value instanceof Double) {
+                numbers[index] = (double) value;
+                return;
+            }
+            migrate();
+        }
+        values[index] = value;
+    }
+
+    void append(Object value) {
+        int capacity = numbers != null ? numbers.length : values.length;
+        if (size == capacity) {
+            int grown = capacity + (capacity >> 1);
+            if (numbers != null) {
+                numbers = Arrays.copyOf(numbers, grown);
+            } else {
+                values = Arrays.copyOf(values, grown);
+            }
+        }
+        set(size++, value);
+    }
+
+    /**
+     * Adds the elements, other than nil, to values. Numeric arrays hold
+     * nothing worth adding.
+     */
+    void addValues(Deque<Object> values) {
+        if (numbers != null) return;
+
+        for (int i = 0; i < size; i++) {
+            if (this.values[i] != null) values.add(this.values[i]);
+        }
+    }
+
+    private void migrate() {
+        values = new Object[numbers.length];
+        for (int i = 0; i < size; i++) {
+            values[i] = numbers[i];
+        }
+        numbers = null;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) builder.append(", ");
+            builder.append(Interpreter.stringify(get(i)));
+        }
+        return builder.append("]").toString();
+    }
+}
@@ -1,8 +1,7 @@
 package lox;
 
-import java.util.HashMap;
+import java.util.Deque;
 import java.util.List;
-import java.util.Map;
 
 /**
  * @author chenpeng
@@ -10,25 +9,36 @@ import java.util.Map;
  */
 class LoxClass extends LoxInstance implements LoxCallable {
     final String name;
-    private final Map<String, LoxFunction> methods;
-    private static Map<String, LoxFunction> staticMethod = new HashMap<>();
+    private final SymbolMap methods;
+    private static SymbolMap staticMethod = new SymbolMap();
 
-    LoxClass(String name, Map<String, LoxFunction> methods) {
+    LoxClass(String name, SymbolMap methods) {
         super();
         this.name = name;
         this.methods = methods;
     }
 
-    LoxFunction findMethod(LoxInstance instance, String name) {
-        if (methods.containsKey(name)) {
-            return methods.get(name).bind(instance);
+    LoxFunction findMethod(LoxInstance instance, int symbol) {
+        LoxFunction method = (LoxFunction) methods.get(symbol);
+        if (method != null) {
+            return method.bind(instance);
         }
 
         return null;
     }
 
-    static void add(String name, LoxFunction method) {
-        staticMethod.put(name, method);
+    /**
+     * Also reaches the methods, since calling the class or a method runs
+     * them in the scope they were declared in.
+     */
+    @Override
+    void share(Deque<Object> reached) {
+        super.share(reached);
+        methods.addValues(reached);
+    }
+
+    static void add(int symbol, LoxFunction method) {
+        staticMethod.put(symbol, method);
     }
 
     @Override
@@ -38,7 +48,7 @@ class LoxClass extends LoxInstance implements LoxCallable {
 
     @Override
     public int arity() {
-        LoxFunction initializer = methods.get("init");
+        LoxFunction initializer = (LoxFunction) methods.get(Symbols.INIT);
         if (initializer == null) return 0;
 
         return initializer.arity();
@@ -46,8 +56,8 @@ class LoxClass extends LoxInstance implements LoxCallable {
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        LoxInstance instance = new LoxInstance(this);
-        LoxFunction initializer = methods.get("init");
+        LoxInstance instance = new LoxInstance(this, interpreter);
+        LoxFunction initializer = (LoxFunction) methods.get(Symbols.INIT);
         if (initializer != null) {
             initializer.bind(instance).call(interpreter, arguments);
         }
@@ -56,6 +66,6 @@ class LoxClass extends LoxInstance implements LoxCallable {
 
     @Override
     Object get(Token name) {
-        return staticMethod.get(name.lexeme);
+        return staticMethod.get(name.symbol);
     }
 }
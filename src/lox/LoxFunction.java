@@ -1,6 +1,9 @@
 package lox;
 
+import java.util.Deque;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * @author chenpeng
@@ -12,17 +15,43 @@ public class LoxFunction implements LoxCallable {
     private final Environment closure;
     private final boolean isInitializer;
 
-    LoxFunction(Stmt.Function declaration, Environment closure,
+    /**
+     * The resolved locals of the program the function was declared in.
+     */
+    private final Map<Expr, Integer> locals;
+
+    /**
+     * Results of earlier calls, for functions declared pure.
+     */
+    final MemoCache memo;
+
+    /**
+     * For a generator, the statements of its body that contain a yield,
+     * found on the first call.
+     */
+    private volatile Set<Stmt> suspending;
+
+    LoxFunction(Stmt.Function declaration, Environment closure, Map<Expr, Integer> locals,
                 boolean isInitializer) {
         this.declaration = declaration;
         this.closure = closure;
+        this.locals = locals;
         this.isInitializer = isInitializer;
+        this.memo = declaration.isPure ? new MemoCache(MemoCache.DEFAULT_CAPACITY) : null;
     }
 
     LoxFunction bind(LoxInstance instance) {
         Environment environment = new Environment(closure);
-        environment.define("this", instance);
-        return new LoxFunction(declaration, environment, isInitializer);
+        environment.define(Symbols.THIS, instance);
+        return new LoxFunction(declaration, environment, locals, isInitializer);
+    }
+
+    /**
+     * Makes the scopes this function closes over safe to use from another
+     * thread, adding the values they hold to reached.
+     */
+    void share(Deque<Object> reached) {
+        closure.share(reached);
     }
 
     @Override
@@ -32,21 +61,55 @@ public class LoxFunction implements LoxCallable {
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure);
+        interpreter.tick(declaration.name);
 
-        for (int i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i).lexeme, arguments.get(i));
+        if (declaration.isGenerator) {
+            if (suspending == null) suspending = LoxGenerator.suspending(declaration.body);
+
+            Interpreter generator = new Interpreter(interpreter);
+            generator.locals = locals;
+            return new LoxGenerator(generator, declaration.body, bind(generator, arguments), suspending);
         }
 
+        if (memo != null && MemoCache.cacheable(arguments)) {
+            Object result = memo.lookup(arguments);
+            if (result == MemoCache.MISS) {
+                result = invoke(interpreter, arguments);
+                memo.store(arguments, result);
+            }
+            return result;
+        }
+        return invoke(interpreter, arguments);
+    }
+
+    private Object invoke(Interpreter interpreter, List<Object> arguments) {
+        Environment environment = bind(interpreter, arguments);
+        Map<Expr, Integer> previous = interpreter.locals;
+
         try {
+            interpreter.locals = locals;
             interpreter.executeBlock(declaration.body, environment);
         } catch (Return returnValue) {
-            if (isInitializer) return closure.getAt(0, "this");
+            if (isInitializer) return closure.getAt(0, Symbols.THIS);
             return returnValue.value;
+        } finally {
+            interpreter.locals = previous;
         }
         return null;
     }
 
+    /**
+     * The scope of one call, with the parameters bound to arguments.
+     */
+    private Environment bind(Interpreter interpreter, List<Object> arguments) {
+        Environment environment = new Environment(closure, interpreter);
+
+        for (int i = 0; i < declaration.params.size(); i++) {
+            environment.define(declaration.params.get(i).symbol, arguments.get(i));
+        }
+        return environment;
+    }
+
     @Override
     public String toString() {
         return String.format("<fn %s>", declaration.name.lexeme);
@@ -0,0 +1,381 @@
+package lox;
+
+import java.lang.ref.Cleaner;
+import java.lang.ref.Reference;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The value returned by calling a function that contains yield. The body
+ * runs lazily, on the thread asking for the next value, with its own
+ * interpreter state: it runs up to a yield, and picks up from there when
+ * the next value is wanted. So a generator holds at most one value and
+ * needs no thread of its own.
+ *
+ * <p>Since yield is a statement, only blocks, ifs, while and for-in loops
+ * can be left halfway; the generator keeps one frame for each of those it
+ * is inside. Statements without a yield in them run as usual.
+ *
+ * <p>A generator that is closed, or dropped by its consumer before it
+ * finishes, closes the streams and generators its loops were reading.
+ */
+class LoxGenerator {
+
+    private static final Cleaner cleaner = Cleaner.create();
+
+    private final Machine machine;
+
+    /**
+     * A generator running body in environment, on interpreter. Suspending
+     * holds the statements of body that contain a yield.
+     */
+    LoxGenerator(Interpreter interpreter, List<Stmt> body, Environment environment, Set<Stmt> suspending) {
+        machine = new Machine(interpreter, body, environment, suspending);
+        cleaner.register(this, machine::close);
+    }
+
+    /**
+     * The statements of body that contain a yield, not counting functions
+     * declared in it, which are generators of their own.
+     */
+    static Set<Stmt> suspending(List<Stmt> body) {
+        Set<Stmt> suspending = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Stmt stmt : body) {
+            collect(stmt, suspending);
+        }
+        return suspending;
+    }
+
+    private static boolean collect(Stmt stmt, Set<Stmt> suspending) {
+        if (stmt == null) return false;
+
+        boolean suspends = false;
+        switch (stmt.kind) {
+            case Stmt.YIELD:
+                suspends = true;
+                break;
+            case Stmt.BLOCK:
+                for (Stmt inner : ((Stmt.Block) stmt).statements) {
+                    suspends |= collect(inner, suspending);
+                }
+                break;
+            case Stmt.IF:
+                suspends = collect(((Stmt.If) stmt).thenBranch, suspending);
+                suspends |= collect(((Stmt.If) stmt).elseBranch, suspending);
+                break;
+            case Stmt.WHILE:
+                suspends = collect(((Stmt.While) stmt).body, suspending);
+                break;
+            case Stmt.FOR_IN:
+                suspends = collect(((Stmt.ForIn) stmt).body, suspending);
+                break;
+        }
+        if (suspends) suspending.add(stmt);
+        return suspends;
+    }
+
+    /**
+     * Runs the body up to its next yield, unless a value is already waiting.
+     * Returns false once the body has finished or the generator is closed.
+     */
+    boolean hasNext() {
+        try {
+            return machine.hasNext();
+        } finally {
+            Reference.reachabilityFence(this);
+        }
+    }
+
+    Object next() {
+        try {
+            return machine.next();
+        } finally {
+            Reference.reachabilityFence(this);
+        }
+    }
+
+    /**
+     * Abandons the rest of the body, as when a loop walking the generator
+     * is left early. Does nothing once the body has finished.
+     */
+    void close() {
+        machine.close();
+    }
+
+    @Override
+    public String toString() {
+        return "<generator>";
+    }
+
+    /**
+     * Where the body has got to. It holds no reference back to the
+     * LoxGenerator, so it can close the body once the generator is dropped.
+     */
+    private static final class Machine {
+        private final Interpreter interpreter;
+        private final Set<Stmt> suspending;
+
+        /**
+         * The innermost statement the body is inside.
+         */
+        private Frame top;
+
+        private boolean finished = false;
+        private boolean hasValue = false;
+        private Object value;
+
+        private Machine(Interpreter interpreter, List<Stmt> body, Environment environment,
+                        Set<Stmt> suspending) {
+            this.interpreter = interpreter;
+            this.suspending = suspending;
+            top = new Block(body, environment);
+        }
+
+        synchronized boolean hasNext() {
+            if (hasValue) return true;
+            if (finished) return false;
+
+            try {
+                resume();
+            } catch (Return returned) {
+                close();
+            } catch (RuntimeException | Error e) {
+                close();
+                throw e;
+            }
+            return hasValue;
+        }
+
+        synchronized Object next() {
+            if (!hasNext()) throw new RuntimeError("Generator is exhausted.");
+
+            Object next = value;
+            value = null;
+            hasValue = false;
+            return next;
+        }
+
+        synchronized void close() {
+            finished = true;
+            hasValue = false;
+            value = null;
+            for (; top != null; top = top.parent) {
+                top.close();
+            }
+        }
+
+        /**
+         * Runs the body until it yields a value or finishes.
+         */
+        private void resume() {
+            while (top != null) {
+                Stmt stmt = top.next();
+                if (stmt == null) {
+                    top.exit();
+                    top = top.parent;
+                } else if (start(stmt)) {
+                    return;
+                }
+            }
+            finished = true;
+        }
+
+        /**
+         * Starts running stmt, entering a frame for it if it contains a
+         * yield. Returns true if it yielded straight away.
+         */
+        private boolean start(Stmt stmt) {
+            while (suspending.contains(stmt)) {
+                switch (stmt.kind) {
+                    case Stmt.YIELD:
+                        value = interpreter.evaluate(((Stmt.Yield) stmt).value);
+                        hasValue = true;
+                        return true;
+                    case Stmt.BLOCK:
+                        push(new Block(((Stmt.Block) stmt).statements,
+                                new Environment(interpreter.environment, interpreter)));
+                        return false;
+                    case Stmt.IF:
+                        Stmt.If branch = (Stmt.If) stmt;
+                        stmt = Interpreter.isTruthy(interpreter.evaluate(branch.condition))
+                                ? branch.thenBranch : branch.elseBranch;
+                        if (stmt == null) return false;
+                        break;
+                    case Stmt.WHILE:
+                        push(new While((Stmt.While) stmt));
+                        return false;
+                    case Stmt.FOR_IN:
+                        push(new ForIn((Stmt.ForIn) stmt));
+                        return false;
+                    default:
+                        throw new IllegalStateException("Cannot suspend in " + stmt + ".");
+                }
+            }
+
+            interpreter.execute(stmt);
+            return false;
+        }
+
+        private void push(Frame frame) {
+            frame.parent = top;
+            top = frame;
+        }
+
+        private abstract static class Frame {
+            Frame parent;
+
+            /**
+             * The next statement to run, or null once the frame is done.
+             */
+            abstract Stmt next();
+
+            /**
+             * Called when the frame is done.
+             */
+            void exit() {
+            }
+
+            /**
+             * Called when the body is abandoned inside the frame.
+             */
+            void close() {
+            }
+        }
+
+        private final class Block extends Frame {
+            private final List<Stmt> statements;
+            private final Environment previous;
+            private int index = 0;
+
+            Block(List<Stmt> statements, Environment environment) {
+                this.statements = statements;
+                previous = interpreter.environment;
+                interpreter.environment = environment;
+            }
+
+            @Override
+            Stmt next() {
+                return index < statements.size() ? statements.get(index++) : null;
+            }
+
+            @Override
+            void exit() {
+                interpreter.environment = previous;
+            }
+        }
+
+        private final class While extends Frame {
+            private final Stmt.While loop;
+            private boolean started = false;
+
+            While(Stmt.While loop) {
+                this.loop = loop;
+            }
+
+            @Override
+            Stmt next() {
+                if (started) interpreter.tick(loop.keyword);
+                started = true;
+
+                return Interpreter.isTruthy(interpreter.evaluate(loop.condition)) ? loop.body : null;
+            }
+        }
+
+        private final class ForIn extends Frame {
+            private final Stmt.ForIn loop;
+            private final LoxStream.Cursor cursor;
+            private final Environment previous;
+            private final Environment scope;
+            private boolean started = false;
+
+            ForIn(Stmt.ForIn loop) {
+                this.loop = loop;
+                cursor = cursor(interpreter.evaluate(loop.iterable));
+                previous = interpreter.environment;
+                scope = new Environment(previous, interpreter);
+                interpreter.environment = scope;
+            }
+
+            private LoxStream.Cursor cursor(Object iterable) {
+                try {
+                    if (iterable instanceof LoxMap) {
+                        return LoxStream.of(((LoxMap) iterable).keys(interpreter)).open(interpreter);
+                    }
+                    if (iterable instanceof LoxInstance) {
+                        return new Iterator(interpreter.invokeMethod(loop.name, iterable, "iterator"));
+                    }
+                    if (iterable instanceof LoxArray || iterable instanceof MappedArray
+                            || iterable instanceof LoxGenerator || iterable instanceof LoxStream) {
+                        return LoxStream.of(iterable).open(interpreter);
+                    }
+                } catch (RuntimeError e) {
+                    throw at(e);
+                }
+
+                throw new RuntimeError(loop.name, "Can only iterate over arrays, maps, streams, " +
+                        "generators and instances with an iterator() method.");
+            }
+
+            @Override
+            Stmt next() {
+                if (started) interpreter.tick(loop.name);
+                started = true;
+
+                try {
+                    if (!cursor.hasNext()) return null;
+                    scope.define(loop.name.symbol, cursor.next());
+                } catch (RuntimeError e) {
+                    throw at(e);
+                }
+                return loop.body;
+            }
+
+            /**
+             * Natives behind streams and generators raise errors without a
+             * token; they are reported at the loop variable.
+             */
+            private RuntimeError at(RuntimeError e) {
+                return e.token != null ? e : new RuntimeError(loop.name, e.getMessage());
+            }
+
+            @Override
+            void exit() {
+                cursor.close();
+                interpreter.environment = previous;
+            }
+
+            @Override
+            void close() {
+                cursor.close();
+            }
+
+            /**
+             * An instance followed through the iterator()/hasNext()/next()
+             * protocol.
+             */
+            private final class Iterator implements LoxStream.Cursor {
+                private final Object iterator;
+
+                Iterator(Object iterator) {
+                    this.iterator = iterator;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return Interpreter.isTruthy(interpreter.invokeMethod(loop.name, iterator, "hasNext"));
+                }
+
+                @Override
+                public Object next() {
+                    return interpreter.invokeMethod(loop.name, iterator, "next");
+                }
+
+                @Override
+                public void close() {
+                }
+            }
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Deque;
 
 /**
  * @author chenpeng
@@ -9,27 +8,49 @@ import java.util.Map;
  */
 class LoxInstance {
     private LoxClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
-
-    LoxInstance() {}
+    /**
+     * Replaced by a shared map once a task can reach the instance; see
+     * {@link #share}.
+     */
+    private SymbolMap fields = new SymbolMap();
+
+    /**
+     * The interpreter that created this instance, used to stop parallel
+     * workers from setting fields of instances they share with other
+     * threads.
+     */
+    final Interpreter owner;
+
+    LoxInstance() {
+        owner = null;
+    }
 
-    LoxInstance(LoxClass klass) {
+    LoxInstance(LoxClass klass, Interpreter owner) {
         this.klass = klass;
+        this.owner = owner;
     }
 
     Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
+        if (fields.containsKey(name.symbol)) {
+            return fields.get(name.symbol);
         }
 
-        LoxFunction method = klass.findMethod(this, name.lexeme);
+        LoxFunction method = klass.findMethod(this, name.symbol);
         if (method != null) return method;
 
         throw new RuntimeError(name, String.format("Undefined property '%s'.", name.lexeme));
     }
 
     void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+        fields.put(name.symbol, value);
+    }
+
+    /**
+     * Makes the fields safe for tasks on other threads to read and set,
+     * adding their values to reached. Does nothing if they are already.
+     */
+    void share(Deque<Object> reached) {
+        fields = fields.share(reached);
     }
 
     @Override
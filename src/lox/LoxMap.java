@@ -0,0 +1,195 @@
+package lox;
+
+import java.util.Deque;
+
+/**
+ * A hash map value using open addressing with linear probing. Keys and
+ * values share one flat array, so an entry costs two references plus slack
+ * for the load factor. Keys are equal when {@link Interpreter#isEqual}
+ * says so: strings and numbers by value, anything else by identity.
+ */
+class LoxMap {
+
+    private static final int MIN_SLOTS = 8;
+
+    /**
+     * Stands in for a nil key, since a null slot marks an empty one.
+     */
+    private static final Object NIL = new Object();
+
+    /**
+     * The interpreter that created this map, used to stop parallel workers
+     * from writing to maps they share with other threads.
+     */
+    final Interpreter owner;
+
+    private Object[] table = new Object[MIN_SLOTS * 2];
+    private int mask = MIN_SLOTS - 1;
+    private int size = 0;
+
+    LoxMap(Interpreter owner) {
+        this.owner = owner;
+    }
+
+    int size() {
+        return size;
+    }
+
+    Object get(Object key) {
+        int slot = find(key == null ? NIL : key);
+        return slot < 0 ? null : table[2 * slot + 1];
+    }
+
+    boolean containsKey(Object key) {
+        return find(key == null ? NIL : key) >= 0;
+    }
+
+    void put(Object key, Object value) {
+        if (key == null) key = NIL;
+        if ((size + 1) * 4 > (mask + 1) * 3) resize();
+
+        int slot = hash(key) & mask;
+        while (true) {
+            Object current = table[2 * slot];
+            if (current == null) {
+                table[2 * slot] = key;
+                table[2 * slot + 1] = value;
+                size++;
+                return;
+            }
+            if (matches(current, key)) {
+                table[2 * slot + 1] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Removes the key and returns its value. Later entries of the probe run
+     * are shifted back instead of leaving tombstones behind.
+     */
+    Object remove(Object key) {
+        int slot = find(key == null ? NIL : key);
+        if (slot < 0) return null;
+
+        Object removed = table[2 * slot + 1];
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            Object current = table[2 * next];
+            if (current == null) break;
+
+            int home = hash(current) & mask;
+            boolean movable = slot <= next
+                    ? home <= slot || home > next
+                    : home <= slot && home > next;
+            if (movable) {
+                table[2 * slot] = current;
+                table[2 * slot + 1] = table[2 * next + 1];
+                slot = next;
+            }
+        }
+
+        table[2 * slot] = null;
+        table[2 * slot + 1] = null;
+        size--;
+        return removed;
+    }
+
+    LoxArray keys(Interpreter owner) {
+        LoxArray keys = new LoxArray(size, owner);
+        for (int i = 0; i < table.length; i += 2) {
+            Object key = table[i];
+            if (key != null) keys.append(key == NIL ? null : key);
+        }
+        return keys;
+    }
+
+    LoxArray values(Interpreter owner) {
+        LoxArray values = new LoxArray(size, owner);
+        for (int i = 0; i < table.length; i += 2) {
+            if (table[i] != null) values.append(table[i + 1]);
+        }
+        return values;
+    }
+
+    /**
+     * Adds the keys and values, other than nil, to values.
+     */
+    void addValues(Deque<Object> values) {
+        for (int i = 0; i < table.length; i += 2) {
+            Object key = table[i];
+            if (key == null) continue;
+
+            if (key != NIL) values.add(key);
+            if (table[i + 1] != null) values.add(table[i + 1]);
+        }
+    }
+
+    private int find(Object key) {
+        int slot = hash(key) & mask;
+        while (true) {
+            Object current = table[2 * slot];
+            if (current == null) return -1;
+            if (matches(current, key)) return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private static boolean matches(Object current, Object key) {
+        if (current == key) return true;
+
+        if (key instanceof String) {
+            return current instanceof String && ((String) key).equals(current);
+        }
+        if (key instanceof Double) {
+            return current instanceof Double
+                    && Double.doubleToLongBits((double) key) == Double.doubleToLongBits((double) current);
+        }
+        return key instanceof Boolean && key.equals(current);
+    }
+
+    private static int hash(Object key) {
+        int h;
+        if (key instanceof String) {
+            h = key.hashCode();
+        } else if (key instanceof Double) {
+            long bits = Double.doubleToLongBits((double) key);
+            h = (int) (bits ^ (bits >>> 32));
+        } else if (key instanceof Boolean) {
+            h = key.hashCode();
+        } else {
+            h = System.identityHashCode(key);
+        }
+
+        h *= 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    private void resize() {
+        Object[] old = table;
+        table = new Object[old.length * 2];
+        mask = (table.length / 2) - 1;
+        size = 0;
+
+        for (int i = 0; i < old.length; i += 2) {
+            if (old[i] != null) put(old[i], old[i + 1]);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("{");
+        for (int i = 0; i < table.length; i += 2) {
+            Object key = table[i];
+            if (key == null) continue;
+
+            if (builder.length() > 1) builder.append(", ");
+            builder.append(Interpreter.stringify(key == NIL ? null : key))
+                    .append(": ")
+                    .append(Interpreter.stringify(table[i + 1]));
+        }
+        return builder.append("}").toString();
+    }
+}
@@ -0,0 +1,353 @@
+package lox;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+/**
+ * A lazy sequence of values, as built by the streamLines, streamMap,
+ * streamFilter and streamTake natives. Nothing runs until streamForEach;
+ * then the source pushes each value through all the stages in a single
+ * pass, so no intermediate collection is built and a file is read in
+ * constant memory. A stream can also be pulled from one value at a time
+ * through a {@link Cursor}, for a generator that yields from inside a loop
+ * over it.
+ */
+abstract class LoxStream {
+
+    interface Sink {
+        /**
+         * Consumes one value and returns false once no more are wanted.
+         */
+        boolean accept(Object value);
+    }
+
+    /**
+     * Values pulled one at a time. Must be closed if not read to the end.
+     */
+    interface Cursor {
+        boolean hasNext();
+
+        Object next();
+
+        void close();
+    }
+
+    /**
+     * Pushes values into sink until the source runs out or sink declines.
+     */
+    abstract void run(Interpreter interpreter, Sink sink);
+
+    /**
+     * Starts pulling values. Consumes the stream as run does.
+     */
+    abstract Cursor open(Interpreter interpreter);
+
+    static LoxStream lines(Path path) {
+        return new LoxStream() {
+            private boolean consumed = false;
+
+            @Override
+            void run(Interpreter interpreter, Sink sink) {
+                if (consumed) throw new RuntimeError("A lines stream can only be consumed once.");
+                consumed = true;
+
+                try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (!sink.accept(line)) return;
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeError(String.format("Cannot read '%s': %s", path, e.getMessage()));
+                }
+            }
+
+            @Override
+            Cursor open(Interpreter interpreter) {
+                if (consumed) throw new RuntimeError("A lines stream can only be consumed once.");
+                consumed = true;
+
+                BufferedReader reader;
+                try {
+                    reader = Files.newBufferedReader(path, StandardCharsets.UTF_8);
+                } catch (IOException e) {
+                    throw new RuntimeError(String.format("Cannot read '%s': %s", path, e.getMessage()));
+                }
+
+                return new Lookahead() {
+                    @Override
+                    boolean advance() {
+                        try {
+                            String line = reader.readLine();
+                            if (line == null) return false;
+                            pending = line;
+                            return true;
+                        } catch (IOException e) {
+                            throw new RuntimeError(String.format("Cannot read '%s': %s", path, e.getMessage()));
+                        }
+                    }
+
+                    @Override
+                    public void close() {
+                        try {
+                            reader.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                };
+            }
+
+            @Override
+            public String toString() {
+                return String.format("<lines %s>", path.getFileName());
+            }
+        };
+    }
+
+    /**
+     * A stream over an existing stream, array, mapped array or generator.
+     * A generator is closed once the stream stops reading it.
+     */
+    static LoxStream of(Object source) {
+        if (source instanceof LoxStream) return (LoxStream) source;
+
+        if (source instanceof LoxArray) {
+            LoxArray array = (LoxArray) source;
+            return new LoxStream() {
+                @Override
+                void run(Interpreter interpreter, Sink sink) {
+                    for (int i = 0; i < array.length(); i++) {
+                        if (!sink.accept(array.get(i))) return;
+                    }
+                }
+
+                @Override
+                Cursor open(Interpreter interpreter) {
+                    return new Lookahead() {
+                        private int index = 0;
+
+                        @Override
+                        boolean advance() {
+                            if (index >= array.length()) return false;
+                            pending = array.get(index++);
+                            return true;
+                        }
+                    };
+                }
+            };
+        }
+
+        if (source instanceof MappedArray) {
+            MappedArray array = (MappedArray) source;
+            return new LoxStream() {
+                @Override
+                void run(Interpreter interpreter, Sink sink) {
+                    for (long i = 0; i < array.length(); i++) {
+                        if (!sink.accept(array.get(i))) return;
+                    }
+                }
+
+                @Override
+                Cursor open(Interpreter interpreter) {
+                    return new Lookahead() {
+                        private long index = 0;
+
+                        @Override
+                        boolean advance() {
+                            if (index >= array.length()) return false;
+                            pending = array.get(index++);
+                            return true;
+                        }
+                    };
+                }
+            };
+        }
+
+        if (source instanceof LoxGenerator) {
+            LoxGenerator generator = (LoxGenerator) source;
+            return new LoxStream() {
+                @Override
+                void run(Interpreter interpreter, Sink sink) {
+                    try {
+                        while (generator.hasNext()) {
+                            if (!sink.accept(generator.next())) return;
+                        }
+                    } finally {
+                        generator.close();
+                    }
+                }
+
+                @Override
+                Cursor open(Interpreter interpreter) {
+                    return new Cursor() {
+                        @Override
+                        public boolean hasNext() {
+                            return generator.hasNext();
+                        }
+
+                        @Override
+                        public Object next() {
+                            return generator.next();
+                        }
+
+                        @Override
+                        public void close() {
+                            generator.close();
+                        }
+                    };
+                }
+            };
+        }
+
+        throw new RuntimeError("Expect a stream, an array or a generator.");
+    }
+
+    LoxStream map(LoxCallable function) {
+        LoxStream upstream = this;
+        return new LoxStream() {
+            @Override
+            void run(Interpreter interpreter, Sink sink) {
+                upstream.run(interpreter, value ->
+                        sink.accept(function.call(interpreter, Collections.singletonList(value))));
+            }
+
+            @Override
+            Cursor open(Interpreter interpreter) {
+                Cursor source = upstream.open(interpreter);
+                return new Lookahead(source) {
+                    @Override
+                    boolean advance() {
+                        if (!source.hasNext()) return false;
+                        pending = function.call(interpreter, Collections.singletonList(source.next()));
+                        return true;
+                    }
+                };
+            }
+        };
+    }
+
+    LoxStream filter(LoxCallable predicate) {
+        LoxStream upstream = this;
+        return new LoxStream() {
+            @Override
+            void run(Interpreter interpreter, Sink sink) {
+                upstream.run(interpreter, value ->
+                        !Interpreter.isTruthy(predicate.call(interpreter, Collections.singletonList(value)))
+                                || sink.accept(value));
+            }
+
+            @Override
+            Cursor open(Interpreter interpreter) {
+                Cursor source = upstream.open(interpreter);
+                return new Lookahead(source) {
+                    @Override
+                    boolean advance() {
+                        while (source.hasNext()) {
+                            Object value = source.next();
+                            if (Interpreter.isTruthy(predicate.call(interpreter, Collections.singletonList(value)))) {
+                                pending = value;
+                                return true;
+                            }
+                        }
+                        return false;
+                    }
+                };
+            }
+        };
+    }
+
+    LoxStream take(long count) {
+        LoxStream upstream = this;
+        return new LoxStream() {
+            @Override
+            void run(Interpreter interpreter, Sink sink) {
+                if (count <= 0) return;
+
+                long[] remaining = {count};
+                upstream.run(interpreter, value -> sink.accept(value) && --remaining[0] > 0);
+            }
+
+            @Override
+            Cursor open(Interpreter interpreter) {
+                Cursor source = upstream.open(interpreter);
+                return new Lookahead(source) {
+                    private long remaining = count;
+
+                    @Override
+                    boolean advance() {
+                        if (remaining <= 0 || !source.hasNext()) return false;
+                        remaining--;
+                        pending = source.next();
+                        return true;
+                    }
+                };
+            }
+        };
+    }
+
+    void forEach(Interpreter interpreter, LoxCallable action) {
+        run(interpreter, value -> {
+            action.call(interpreter, Collections.singletonList(value));
+            return true;
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "<stream>";
+    }
+
+    /**
+     * A cursor that reads one value ahead, so hasNext can be asked any
+     * number of times. Closing it closes the cursor it reads from, if any.
+     */
+    private abstract static class Lookahead implements Cursor {
+        private final Cursor source;
+        private boolean ready = false;
+        private boolean ended = false;
+        Object pending;
+
+        Lookahead() {
+            this(null);
+        }
+
+        Lookahead(Cursor source) {
+            this.source = source;
+        }
+
+        /**
+         * Reads the next value into pending, or returns false at the end.
+         */
+        abstract boolean advance();
+
+        @Override
+        public boolean hasNext() {
+            if (!ready && !ended) {
+                if (advance()) {
+                    ready = true;
+                } else {
+                    ended = true;
+                }
+            }
+            return ready;
+        }
+
+        @Override
+        public Object next() {
+            if (!hasNext()) throw new RuntimeError("Stream is exhausted.");
+
+            Object value = pending;
+            pending = null;
+            ready = false;
+            return value;
+        }
+
+        @Override
+        public void close() {
+            if (source != null) source.close();
+        }
+    }
+}
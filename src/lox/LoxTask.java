@@ -0,0 +1,127 @@
+package lox;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * A function running concurrently with the script that spawned it, as
+ * returned by the spawn native. Each task gets its own interpreter state
+ * but shares the globals and resolved program of its parent.
+ */
+class LoxTask {
+
+    /**
+     * Runs each task on a virtual thread when the JDK has them, otherwise on
+     * a pool of daemon threads.
+     */
+    static final Executor executor = createExecutor();
+
+    private final CompletableFuture<Object> future;
+
+    private LoxTask(CompletableFuture<Object> future) {
+        this.future = future;
+    }
+
+    /**
+     * Set by the first spawn. Until then everything runs on one thread and
+     * scopes and fields are left unshared.
+     */
+    static volatile boolean started = false;
+
+    static LoxTask spawn(Interpreter parent, LoxCallable function) {
+        start(parent.globals);
+        publish(function);
+
+        return new LoxTask(CompletableFuture.supplyAsync(
+                () -> function.call(new Interpreter(parent), Collections.emptyList()), executor));
+    }
+
+    /**
+     * Publishes what the globals hold, before the first task can read them.
+     * Values stored in the globals from then on are published as they are
+     * stored.
+     */
+    private static synchronized void start(Environment globals) {
+        if (started) return;
+
+        started = true;
+        Deque<Object> reached = new ArrayDeque<>();
+        globals.addValues(reached);
+        publish(reached);
+    }
+
+    /**
+     * Makes value, and the scopes, fields and elements that can be reached
+     * from it, safe for tasks on other threads to use. Scopes and fields
+     * are switched to shared maps; those that already are end the walk.
+     */
+    static void publish(Object value) {
+        if (!(value instanceof LoxInstance || value instanceof LoxFunction
+                || value instanceof LoxArray || value instanceof LoxMap)) return;
+
+        Deque<Object> reached = new ArrayDeque<>();
+        reached.add(value);
+        publish(reached);
+    }
+
+    private static void publish(Deque<Object> reached) {
+        // arrays, maps and classes have nothing that marks them as walked
+        Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        while (!reached.isEmpty()) {
+            Object value = reached.poll();
+            if (value instanceof LoxClass) {
+                if (seen.add(value)) ((LoxClass) value).share(reached);
+            } else if (value instanceof LoxInstance) {
+                ((LoxInstance) value).share(reached);
+            } else if (value instanceof LoxFunction) {
+                ((LoxFunction) value).share(reached);
+            } else if (value instanceof LoxArray) {
+                if (seen.add(value)) ((LoxArray) value).addValues(reached);
+            } else if (value instanceof LoxMap) {
+                if (seen.add(value)) ((LoxMap) value).addValues(reached);
+            }
+        }
+    }
+
+    /**
+     * Blocks until the task finishes and returns its result, rethrowing the
+     * runtime error it failed with, if any.
+     */
+    Object await() {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return future.isDone() ? "<task done>" : "<task>";
+    }
+
+    private static Executor createExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (Executor) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "lox-task");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package lox;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+/**
+ * A read-only array of numbers backed by a memory-mapped file of doubles
+ * in native byte order, as returned by the mapDoubles native. The file is
+ * mapped in 1 GB segments so it may be larger than one buffer can address.
+ */
+class MappedArray {
+
+    private static final int SEGMENT_SHIFT = 27; // 2^27 doubles, 1 GB
+    private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+    private final Path path;
+    private final DoubleBuffer[] segments;
+    private final long length;
+
+    private MappedArray(Path path, DoubleBuffer[] segments, long length) {
+        this.path = path;
+        this.segments = segments;
+        this.length = length;
+    }
+
+    static MappedArray map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path)) {
+            long size = channel.size();
+            if (size % Double.BYTES != 0) {
+                throw new RuntimeError(String.format("Size of '%s' is not a multiple of 8 bytes.", path));
+            }
+
+            long length = size / Double.BYTES;
+            int count = (int) ((length + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+            DoubleBuffer[] segments = new DoubleBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long first = (long) i << SEGMENT_SHIFT;
+                long elements = Math.min(length - first, 1L << SEGMENT_SHIFT);
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        first * Double.BYTES, elements * Double.BYTES)
+                        .order(ByteOrder.nativeOrder())
+                        .asDoubleBuffer();
+            }
+            return new MappedArray(path, segments, length);
+        }
+    }
+
+    long length() {
+        return length;
+    }
+
+    double get(long index) {
+        return segments[(int) (index >>> SEGMENT_SHIFT)].get((int) (index & SEGMENT_MASK));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("<mapped array %s, %d numbers>", path.getFileName(), length);
+    }
+}
@@ -0,0 +1,80 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The results of a pure function keyed by its arguments, dropping the least
+ * recently used entry once full. Only calls whose arguments are all nil,
+ * booleans, numbers or strings are cached, since those compare by value.
+ */
+class MemoCache {
+
+    /**
+     * Returned by lookup when the arguments have no cached result, as nil is
+     * a valid one.
+     */
+    static final Object MISS = new Object();
+
+    static final int DEFAULT_CAPACITY = Integer.getInteger("lox.memo.capacity", 1024);
+
+    private final int capacity;
+    private final LinkedHashMap<List<Object>, Object> results;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    MemoCache(int capacity) {
+        this.capacity = capacity;
+        this.results = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<Object>, Object> eldest) {
+                if (size() <= MemoCache.this.capacity) return false;
+
+                evictions++;
+                return true;
+            }
+        };
+    }
+
+    static boolean cacheable(List<Object> arguments) {
+        for (Object argument : arguments) {
+            if (argument != null && !(argument instanceof Double)
+                    && !(argument instanceof String) && !(argument instanceof Boolean)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    synchronized Object lookup(List<Object> arguments) {
+        Object result = results.getOrDefault(arguments, MISS);
+        if (result == MISS) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return result;
+    }
+
+    synchronized void store(List<Object> arguments, Object result) {
+        results.put(new ArrayList<>(arguments), result);
+    }
+
+    /**
+     * The statistics as a Lox map, for the memoStats native.
+     */
+    synchronized LoxMap stats(Interpreter owner) {
+        LoxMap stats = new LoxMap(owner);
+        stats.put("hits", (double) hits);
+        stats.put("misses", (double) misses);
+        stats.put("evictions", (double) evictions);
+        stats.put("size", (double) results.size());
+        stats.put("capacity", (double) capacity);
+        stats.put("hitRate", hits + misses == 0 ? 0.0 : (double) hits / (hits + misses));
+        return stats;
+    }
+}
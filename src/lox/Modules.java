@@ -0,0 +1,194 @@
+package lox;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Loads scripts together with the modules they import. Each module is
+ * compiled, or taken from its disk cache, by a task on the common fork/join
+ * pool as soon as the first import naming it is found, so independent
+ * modules are scanned, parsed and resolved in parallel. Once the whole graph
+ * is known the modules are ordered so that each runs after everything it
+ * imports; they all run in the one set of globals.
+ *
+ * <p>An import path is relative to the directory of the importing script.
+ */
+class Modules {
+
+    private final Map<Path, Module> modules = new ConcurrentHashMap<>();
+    private final Set<Path> initialised;
+
+    private Modules(Set<Path> initialised) {
+        this.initialised = initialised;
+    }
+
+    /**
+     * Loads the scripts and everything they import, and returns them in the
+     * order they should run, scripts already in initialised left out. Returns
+     * null if any module failed to compile or modules import each other in a
+     * cycle. A script that cannot be read is thrown as an
+     * UncheckedIOException; an import that cannot be read is reported as an
+     * error at the import.
+     */
+    static Map<Path, Program> load(List<Path> scripts, Set<Path> initialised) {
+        Modules loader = new Modules(initialised);
+        List<Module> roots = new ArrayList<>();
+        List<Module> started = new ArrayList<>();
+        for (Path script : scripts) {
+            roots.add(loader.module(script.toAbsolutePath().normalize(), null, started));
+        }
+
+        Map<Path, Program> ordered = loader.discover(roots, started);
+        for (Module root : roots) {
+            if (root.failure != null) throw new UncheckedIOException(root.failure);
+        }
+        return ordered;
+    }
+
+    /**
+     * Loads the modules imported by statements compiled from outside any
+     * file, such as at the prompt, with paths relative to dir.
+     */
+    static Map<Path, Program> imports(Path dir, List<Stmt> statements, Set<Path> initialised) {
+        Modules loader = new Modules(initialised);
+        List<Module> roots = new ArrayList<>();
+        List<Module> started = new ArrayList<>();
+        for (Stmt.Import stmt : importsOf(statements)) {
+            roots.add(loader.module(dir.resolve((String) stmt.path.literal).normalize(), stmt.path, started));
+        }
+        return loader.discover(roots, started);
+    }
+
+    private static List<Stmt.Import> importsOf(List<Stmt> statements) {
+        List<Stmt.Import> imports = new ArrayList<>();
+        for (Stmt stmt : statements) {
+            if (stmt.kind == Stmt.IMPORT) imports.add((Stmt.Import) stmt);
+        }
+        return imports;
+    }
+
+    /**
+     * The module for path. The first time a path is named its module is
+     * created and, unless it has already run, its task is forked and added
+     * to started for the caller to join.
+     */
+    private Module module(Path path, Token importedBy, List<Module> started) {
+        Module module = new Module(path, importedBy);
+        Module existing = modules.putIfAbsent(path, module);
+        if (existing != null) return existing;
+
+        if (!initialised.contains(path)) {
+            module.fork();
+            started.add(module);
+        }
+        return module;
+    }
+
+    private Map<Path, Program> discover(List<Module> roots, List<Module> started) {
+        for (int i = started.size() - 1; i >= 0; i--) {
+            started.get(i).join();
+        }
+
+        boolean failed = false;
+        for (Module module : modules.values()) {
+            if (module.program == null && !initialised.contains(module.path)) failed = true;
+        }
+        if (failed) return null;
+
+        Map<Path, Program> ordered = new LinkedHashMap<>();
+        List<Module> importing = new ArrayList<>();
+        for (Module root : roots) {
+            if (!order(root, root.importedBy, importing, ordered)) return null;
+        }
+        return ordered;
+    }
+
+    /**
+     * Adds the module to ordered after the modules it imports, depth first.
+     * importing holds the chain of modules being ordered, so an import that
+     * leads back into it is a cycle.
+     */
+    private boolean order(Module module, Token importedBy, List<Module> importing,
+                          Map<Path, Program> ordered) {
+        if (initialised.contains(module.path) || ordered.containsKey(module.path)) return true;
+
+        int index = importing.indexOf(module);
+        if (index >= 0) {
+            StringBuilder cycle = new StringBuilder();
+            for (Module step : importing.subList(index, importing.size())) {
+                cycle.append(step.path.getFileName()).append(" -> ");
+            }
+            cycle.append(module.path.getFileName());
+            Lox.error(importedBy, "Import cycle " + cycle + ".");
+            return false;
+        }
+
+        importing.add(module);
+        for (int i = 0; i < module.imports.size(); i++) {
+            if (!order(module.imports.get(i), module.importTokens.get(i), importing, ordered)) return false;
+        }
+        importing.remove(importing.size() - 1);
+
+        ordered.put(module.path, module.program);
+        return true;
+    }
+
+    private class Module extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final Path path;
+        final Token importedBy;
+
+        Program program;
+        IOException failure;
+        final List<Module> imports = new ArrayList<>();
+        final List<Token> importTokens = new ArrayList<>();
+
+        Module(Path path, Token importedBy) {
+            this.path = path;
+            this.importedBy = importedBy;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                program = Lox.load(path);
+            } catch (NoSuchFileException e) {
+                fail(e, "Cannot find module '" + path + "'.");
+            } catch (IOException e) {
+                fail(e, "Cannot read module '" + path + "': " + e.getMessage());
+            } catch (UncheckedIOException e) {
+                fail(e.getCause(), "Cannot read module '" + path + "': " + e.getCause().getMessage());
+            }
+            if (program == null) return;
+
+            List<Module> started = new ArrayList<>();
+            for (Stmt.Import stmt : importsOf(program.statements)) {
+                Path target = path.resolveSibling((String) stmt.path.literal).normalize();
+                imports.add(module(target, stmt.path, started));
+                importTokens.add(stmt.path);
+            }
+
+            for (int i = started.size() - 1; i >= 0; i--) {
+                started.get(i).join();
+            }
+        }
+
+        private void fail(IOException e, String message) {
+            if (importedBy == null) {
+                failure = e;
+            } else {
+                Lox.error(importedBy, message);
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package lox;
+
+import java.util.List;
+
+/**
+ * A function implemented in Java and bound to a global name.
+ */
+class NativeFunction implements LoxCallable {
+
+    interface Body {
+        Object call(Interpreter interpreter, List<Object> arguments);
+    }
+
+    private final String name;
+    private final int arity;
+    private final Body body;
+
+    NativeFunction(String name, int arity, Body body) {
+        this.name = name;
+        this.arity = arity;
+        this.body = body;
+    }
+
+    /**
+     * Checks that a native's argument is a function taking arity arguments.
+     */
+    static LoxCallable callable(Object callee, int arity) {
+        if (callee instanceof LoxCallable && ((LoxCallable) callee).arity() == arity) {
+            return (LoxCallable) callee;
+        }
+
+        throw new RuntimeError(String.format("Expect a function taking %d argument%s.",
+                arity, arity == 1 ? "" : "s"));
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        return body.call(interpreter, arguments);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("<native fn %s>", name);
+    }
+}
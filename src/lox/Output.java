@@ -0,0 +1,67 @@
+package lox;
+
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Where print writes to. Output is buffered and written out when the buffer
+ * fills, when the script ends or fails, and after every line in line
+ * buffered (interactive) mode. Like System.out, write errors are ignored.
+ */
+class Output {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final String NEWLINE = System.lineSeparator();
+
+    private final Writer writer;
+    private boolean lineBuffered;
+
+    Output(OutputStream out, boolean lineBuffered) {
+        this.writer = new BufferedWriter(new OutputStreamWriter(out, Charset.defaultCharset()), BUFFER_SIZE);
+        this.lineBuffered = lineBuffered;
+    }
+
+    /**
+     * Standard output, flushed on exit so lines printed by tasks that
+     * outlive the script are not lost. There is one for the whole process,
+     * shared by every interpreter, so their lines stay in the order they
+     * were printed.
+     */
+    static Output stdout() {
+        return Stdout.OUTPUT;
+    }
+
+    void setLineBuffered(boolean lineBuffered) {
+        this.lineBuffered = lineBuffered;
+    }
+
+    synchronized void println(String text) {
+        try {
+            writer.write(text);
+            writer.write(NEWLINE);
+            if (lineBuffered) writer.flush();
+        } catch (IOException ignored) {
+        }
+    }
+
+    synchronized void flush() {
+        try {
+            writer.flush();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static final class Stdout {
+        static final Output OUTPUT = new Output(new FileOutputStream(FileDescriptor.out), false);
+
+        static {
+            Runtime.getRuntime().addShutdownHook(new Thread(OUTPUT::flush));
+        }
+    }
+}
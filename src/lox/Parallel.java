@@ -0,0 +1,173 @@
+package lox;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The parallelMap and parallelReduce natives. Work is split over the common
+ * fork-join pool and every leaf runs on its own isolated interpreter, which
+ * rejects assignments to variables captured from the calling thread.
+ */
+class Parallel {
+
+    /**
+     * Leaves per worker thread, so uneven work can be stolen.
+     */
+    private static final int SPLITS_PER_THREAD = 4;
+
+    private Parallel() {}
+
+    /**
+     * Calls function on every element of source, either an array or a count
+     * n standing for 0 to n - 1, and returns the results in order.
+     */
+    static LoxArray map(Interpreter parent, LoxCallable function, Object source) {
+        Elements elements = elements(source);
+        Object[] results = new Object[elements.size];
+
+        ForkJoinPool.commonPool().invoke(new MapTask(parent, function, elements, results,
+                0, elements.size, threshold(elements.size)));
+        return new LoxArray(results, parent);
+    }
+
+    /**
+     * Folds function over the elements of source starting from init. Slices
+     * are folded concurrently and their results combined with function, so
+     * it must be associative and init must be its identity.
+     */
+    static Object reduce(Interpreter parent, LoxCallable function, Object init, Object source) {
+        Elements elements = elements(source);
+
+        return ForkJoinPool.commonPool().invoke(new ReduceTask(parent, function, init, elements,
+                0, elements.size, threshold(elements.size)));
+    }
+
+    private static int threshold(int size) {
+        int leaves = ForkJoinPool.getCommonPoolParallelism() * SPLITS_PER_THREAD;
+        return Math.max(1, size / leaves);
+    }
+
+    private static Elements elements(Object source) {
+        if (source instanceof LoxArray) {
+            LoxArray array = (LoxArray) source;
+            return new Elements(array, array.length());
+        }
+
+        if (source instanceof MappedArray) {
+            MappedArray array = (MappedArray) source;
+            if (array.length() <= Integer.MAX_VALUE) {
+                return new Elements(array, (int) array.length());
+            }
+        }
+
+        if (source instanceof Double) {
+            double count = (double) source;
+            if (count >= 0 && count <= Integer.MAX_VALUE && count == Math.floor(count)) {
+                return new Elements(null, (int) count);
+            }
+        }
+
+        throw new RuntimeError("Expect an array or a non-negative integer count.");
+    }
+
+    private static class Elements {
+        final Object source;
+        final int size;
+
+        Elements(Object source, int size) {
+            this.source = source;
+            this.size = size;
+        }
+
+        Object get(int index) {
+            if (source instanceof LoxArray) return ((LoxArray) source).get(index);
+            if (source instanceof MappedArray) return ((MappedArray) source).get(index);
+            return (double) index;
+        }
+    }
+
+    private static class MapTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Interpreter parent;
+        private final LoxCallable function;
+        private final Elements elements;
+        private final Object[] results;
+        private final int from;
+        private final int to;
+        private final int threshold;
+
+        MapTask(Interpreter parent, LoxCallable function, Elements elements, Object[] results,
+                int from, int to, int threshold) {
+            this.parent = parent;
+            this.function = function;
+            this.elements = elements;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= threshold) {
+                Interpreter worker = new Interpreter(parent, true);
+                for (int i = from; i < to; i++) {
+                    results[i] = function.call(worker, Collections.singletonList(elements.get(i)));
+                }
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            invokeAll(new MapTask(parent, function, elements, results, from, middle, threshold),
+                    new MapTask(parent, function, elements, results, middle, to, threshold));
+        }
+    }
+
+    private static class ReduceTask extends RecursiveTask<Object> {
+        private static final long serialVersionUID = 1L;
+
+        private final Interpreter parent;
+        private final LoxCallable function;
+        private final Object init;
+        private final Elements elements;
+        private final int from;
+        private final int to;
+        private final int threshold;
+
+        ReduceTask(Interpreter parent, LoxCallable function, Object init, Elements elements,
+                   int from, int to, int threshold) {
+            this.parent = parent;
+            this.function = function;
+            this.init = init;
+            this.elements = elements;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected Object compute() {
+            if (to - from <= threshold) {
+                Interpreter worker = new Interpreter(parent, true);
+                Object result = init;
+                for (int i = from; i < to; i++) {
+                    result = function.call(worker, Arrays.asList(result, elements.get(i)));
+                }
+                return result;
+            }
+
+            int middle = (from + to) >>> 1;
+            ReduceTask left = new ReduceTask(parent, function, init, elements, from, middle, threshold);
+            ReduceTask right = new ReduceTask(parent, function, init, elements, middle, to, threshold);
+            right.fork();
+            Object leftResult = left.compute();
+            Object rightResult = right.join();
+
+            return function.call(new Interpreter(parent, true), Arrays.asList(leftResult, rightResult));
+        }
+    }
+}
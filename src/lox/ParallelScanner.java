@@ -0,0 +1,129 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Scans a large source on the common fork-join pool. A sequential pass
+ * first cuts the source into chunks at newlines that are outside string
+ * literals and comments, noting the line each chunk starts on; the chunks
+ * are then scanned concurrently and their token buffers joined in order.
+ */
+class ParallelScanner {
+
+    /**
+     * Below this many characters a chunk is not worth a task of its own.
+     */
+    static final int MIN_CHUNK = 1 << 20;
+
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private ParallelScanner() {}
+
+    /**
+     * Scans the first length characters of source. Scan errors are reported
+     * in source order once every chunk is done.
+     */
+    static TokenBuffer scan(char[] source, int length) {
+        int chunks = Math.max(1, Math.min(length / MIN_CHUNK,
+                ForkJoinPool.getCommonPoolParallelism() * CHUNKS_PER_THREAD));
+
+        List<Integer> starts = new ArrayList<>();
+        List<Integer> lines = new ArrayList<>();
+        split(source, length, (length + chunks - 1) / chunks, starts, lines);
+
+        int count = starts.size();
+        Scanner[] scanners = new Scanner[count];
+        for (int i = 0; i < count; i++) {
+            int end = i + 1 < count ? starts.get(i + 1) : length;
+            scanners[i] = new Scanner(source, starts.get(i), end, lines.get(i));
+        }
+
+        TokenBuffer[] parts = new TokenBuffer[count];
+        ForkJoinPool.commonPool().invoke(new ScanTask(scanners, parts, 0, count));
+
+        for (Scanner scanner : scanners) scanner.reportErrors();
+
+        TokenBuffer tokens = TokenBuffer.concat(source, parts);
+        tokens.add(TokenType.EOF, length, 0, scanners[count - 1].line(), null);
+        return tokens;
+    }
+
+    /**
+     * Walks the source tracking whether it is inside a string, a line
+     * comment or a block comment, the same way Scanner reads them, and
+     * starts a new chunk at the first safe newline after every chunkSize
+     * characters.
+     */
+    private static void split(char[] source, int length, int chunkSize,
+                              List<Integer> starts, List<Integer> lines) {
+        starts.add(0);
+        lines.add(1);
+
+        int line = 1;
+        int next = chunkSize;
+        int i = 0;
+        while (i < length) {
+            char c = source[i++];
+            switch (c) {
+                case '\n':
+                    line++;
+                    if (i >= next && i < length) {
+                        starts.add(i);
+                        lines.add(line);
+                        next = i + chunkSize;
+                    }
+                    break;
+                case '"':
+                    while (i < length && source[i] != '"') {
+                        if (source[i] == '\n') line++;
+                        i++;
+                    }
+                    i++;
+                    break;
+                case '/':
+                    if (i < length && source[i] == '/') {
+                        while (i < length && source[i] != '\n') i++;
+                    } else if (i < length && source[i] == '*') {
+                        i++;
+                        while (i < length && !(source[i] == '*' && i + 1 < length && source[i + 1] == '/')) {
+                            if (source[i] == '\n') line++;
+                            i++;
+                        }
+                        i += 2;
+                    }
+                    break;
+            }
+        }
+    }
+
+    private static class ScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Scanner[] scanners;
+        private final TokenBuffer[] parts;
+        private final int from;
+        private final int to;
+
+        ScanTask(Scanner[] scanners, TokenBuffer[] parts, int from, int to) {
+            this.scanners = scanners;
+            this.parts = parts;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                parts[from] = scanners[from].scanChunk();
+                return;
+            }
+
+            int mid = (from + to) >>> 1;
+            invokeAll(new ScanTask(scanners, parts, from, mid),
+                    new ScanTask(scanners, parts, mid, to));
+        }
+    }
+}
@@ -3,7 +3,6 @@ package lox;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.function.Supplier;
 
 import static lox.TokenType.*;
 
@@ -17,17 +16,29 @@ class Parser {
 
     private static class ParserError extends RuntimeException {}
 
-    private final List<Token> tokens;
-    private int current = 0;
+    private final TokenSource tokens;
 
-    Parser(List<Token> tokens) {
+    /**
+     * Whether the body of the function being parsed contains a yield, which
+     * makes it a generator.
+     */
+    private boolean sawYield = false;
+
+    /**
+     * Parses tokens as the scanner produces them.
+     */
+    Parser(Scanner scanner) {
+        this(new TokenStream(scanner));
+    }
+
+    Parser(TokenSource tokens) {
         this.tokens = tokens;
     }
 
     List<Stmt> parse() {
         List<Stmt> statements = new ArrayList<>();
         while (!isAtEnd()) {
-            statements.add(declaration());
+            statements.add(topLevelDeclaration());
         }
         return statements;
     }
@@ -36,11 +47,45 @@ class Parser {
         return expression();
     }
 
+    /**
+     * Parses one top-level declaration, or returns null after reporting a
+     * syntax error.
+     */
+    Stmt parseDeclaration() {
+        return topLevelDeclaration();
+    }
+
+    /**
+     * A declaration, or an import, which is only allowed at the top level.
+     */
+    private Stmt topLevelDeclaration() {
+        if (!match(IMPORT)) return declaration();
+
+        try {
+            return importStatement();
+        } catch (ParserError e) {
+            synchronize();
+            return null;
+        }
+    }
+
+    private Stmt importStatement() {
+        Token keyword = previous();
+        Token path = consume(STRING, "Expect module path after 'import'.");
+        consume(SEMICOLON, "Expect ';' after module path.");
+
+        return new Stmt.Import(keyword, path);
+    }
+
     private Stmt declaration() {
         try {
             if (match(CLASS)) return classDeclaration();
             if (match(VAR)) return varDeclaration();
             if (match(FUN)) return function("function");
+            if (match(PURE)) {
+                consume(FUN, "Expect 'fun' after 'pure'.");
+                return function("function", true);
+            }
 
             return statement();
         } catch (ParserError e) {
@@ -70,6 +115,10 @@ class Parser {
     }
 
     private Stmt.Function function(String kind) {
+        return function(kind, false);
+    }
+
+    private Stmt.Function function(String kind, boolean isPure) {
         Token name = consume(IDENTIFIER, String.format("Expect %s name.", kind));
         consume(LEFT_PAREN, String.format("Expect '(' after %s name.", kind));
 
@@ -77,15 +126,24 @@ class Parser {
 
         consume(LEFT_BRACE, String.format("Expect '{' before %s body.", kind));
 
+        boolean enclosingYield = sawYield;
+        sawYield = false;
         List<Stmt> body = block();
-        return new Stmt.Function(name, params, body);
+        boolean isGenerator = sawYield;
+        sawYield = enclosingYield;
+
+        return new Stmt.Function(name, params, body, isGenerator, isPure);
 
     }
 
     private Stmt varDeclaration() {
+        return varDeclaration(consume(IDENTIFIER, "Expect variable name"));
+    }
+
+    private Stmt varDeclaration(Token first) {
 
         List<Stmt.Var> vars = new ArrayList<>();
-        vars.add(varDeclHelper());
+        vars.add(varDeclHelper(first));
         while (match(COMMA)) {
             vars.add(varDeclHelper());
         }
@@ -96,8 +154,10 @@ class Parser {
     }
 
     private Stmt.Var varDeclHelper() {
-        Token name = consume(IDENTIFIER, "Expect variable name");
+        return varDeclHelper(consume(IDENTIFIER, "Expect variable name"));
+    }
 
+    private Stmt.Var varDeclHelper(Token name) {
         Expr initializer = null;
         if (match(EQUAL)) {
             initializer = expression();
@@ -107,11 +167,13 @@ class Parser {
     }
 
     private Stmt statement() {
+        if (match(IMPORT)) throw error(previous(), "Can only import at top level.");
         if (match(FOR)) return forStatement();
         if (match(IF)) return ifStatement();
 //        if (match(PRINT)) return printStatement();
         if (match(RETURN)) return returnStatement();
         if (match(WHILE)) return whileStatement();
+        if (match(YIELD)) return yieldStatement();
 
         if (match(LEFT_BRACE)) return new Stmt.Block(block());
 
@@ -129,14 +191,27 @@ class Parser {
         return new Stmt.Return(keyword, value);
     }
 
+    private Stmt yieldStatement() {
+        Token keyword = previous();
+        Expr value = expression();
+        consume(SEMICOLON, "Expect ';' after yield value.");
+
+        sawYield = true;
+        return new Stmt.Yield(keyword, value);
+    }
+
     private Stmt forStatement() {
+        Token keyword = previous();
         consume(LEFT_PAREN, "Expect '(' after 'for'.");
 
         Stmt initializer;
         if (match(SEMICOLON)) {
             initializer = null;
         } else if (match(VAR)) {
-            initializer = varDeclaration();
+            Token name = consume(IDENTIFIER, "Expect variable name");
+            if (match(IN)) return forInStatement(name);
+
+            initializer = varDeclaration(name);
         } else {
             initializer = expressionStatement();
         }
@@ -160,7 +235,7 @@ class Parser {
         }
 
         if (condition == null) condition = new Expr.Literal(true);
-        body = new Stmt.While(condition, body);
+        body = new Stmt.While(keyword, condition, body);
 
         if (initializer != null) {
             body = new Stmt.Block(Arrays.asList(initializer, body));
@@ -169,14 +244,23 @@ class Parser {
         return body;
     }
 
+    private Stmt forInStatement(Token name) {
+        Expr iterable = expression();
+        consume(RIGHT_PAREN, "Expect ')' after for-in clause.");
+
+        Stmt body = statement();
+        return new Stmt.ForIn(name, iterable, body);
+    }
+
     private Stmt whileStatement() {
+        Token keyword = previous();
         consume(LEFT_PAREN, "Expect '(' after 'while'.");
         Expr condition = expression();
         consume(RIGHT_PAREN, "Expect ')' after while condition.");
 
         Stmt body = statement();
 
-        return new Stmt.While(condition, body);
+        return new Stmt.While(keyword, condition, body);
     }
 
     private Stmt ifStatement() {
@@ -234,6 +318,9 @@ class Parser {
             } else if (expr instanceof Expr.Get) {
                 Expr.Get get = (Expr.Get)expr;
                 return new Expr.Set(get.object, get.name, value);
+            } else if (expr instanceof Expr.Index) {
+                Expr.Index index = (Expr.Index)expr;
+                return new Expr.IndexSet(index.object, index.bracket, index.index, value);
             }
 
             error(equals, "Invalid assignment target.");
@@ -247,6 +334,9 @@ class Parser {
             consume(LEFT_PAREN, "Expect '(' after lambda.");
             List<Token> params = parameters();
 
+            boolean enclosingYield = sawYield;
+            sawYield = false;
+
             List<Stmt> body = null;
             if (match(LEFT_BRACE)) {
                 body = block();
@@ -260,7 +350,10 @@ class Parser {
                 body.add(new Stmt.Return(keyword, value));
             }
 
-            return new Expr.Lambda(name, params, body);
+            boolean isGenerator = sawYield;
+            sawYield = enclosingYield;
+
+            return new Expr.Lambda(name, params, body, isGenerator);
 
         }
 
@@ -297,49 +390,77 @@ class Parser {
         return expr;
     }
 
+    /**
+     * Parses the binary and logical operators, from 'or' down to '*', by
+     * precedence climbing over explicit operand and operator stacks, so a
+     * long chain costs no Java stack and each operand is reached through
+     * one call rather than one per precedence level.
+     */
     private Expr or() {
-        return logicalHelper(this::and, OR);
-    }
-
-    private Expr and() {
-        return logicalHelper(this::equality, AND);
-    }
-
-    private Expr logicalHelper(Supplier<Expr> logicalSupplier, TokenType type) {
-        Expr expr = logicalSupplier.get();
-        while (match(type)) {
-            Token operator = previous();
-            Expr right = logicalSupplier.get();
-            expr = new Expr.Logical(expr, operator, right);
+        List<Expr> operands = new ArrayList<>();
+        List<Token> operators = new ArrayList<>();
+
+        operands.add(unary());
+        while (precedence(tokens.peekType()) > 0) {
+            Token operator = advance();
+            int precedence = precedence(operator.type);
+
+            // everything already stacked binds at least as tightly, and all
+            // these operators are left associative
+            while (!operators.isEmpty()
+                    && precedence(operators.get(operators.size() - 1).type) >= precedence) {
+                reduce(operands, operators);
+            }
+            operators.add(operator);
+            operands.add(unary());
         }
 
-        return expr;
-    }
-
-    private Expr equality() {
-        return binaryHelper(this::comparision, BANG_EQUAL, EQUAL_EQUAL);
-    }
-
-    private Expr binaryHelper(Supplier<Expr> exprSupplier, TokenType... types) {
-        Expr expr = exprSupplier.get();
-        while (match(types)) {
-            Token operator = previous();
-            Expr right = exprSupplier.get();
-            expr = new Expr.Binary(expr, operator, right);
+        while (!operators.isEmpty()) {
+            reduce(operands, operators);
         }
-        return expr;
+        return operands.get(0);
     }
 
-    private Expr comparision() {
-        return binaryHelper(this::addition, GREATER, GREATER_EQUAL, LESS, LESS_EQUAL);
-    }
+    private static void reduce(List<Expr> operands, List<Token> operators) {
+        Token operator = operators.remove(operators.size() - 1);
+        Expr right = operands.remove(operands.size() - 1);
+        Expr left = operands.remove(operands.size() - 1);
 
-    private Expr addition() {
-        return binaryHelper(this::multiplication, MINUS, PLUS);
+        if (operator.type == OR || operator.type == AND) {
+            operands.add(new Expr.Logical(left, operator, right));
+        } else {
+            operands.add(new Expr.Binary(left, operator, right));
+        }
     }
 
-    private Expr multiplication() {
-        return binaryHelper(this::unary, SLASH, STAR, MODULO);
+    /**
+     * How tightly a binary or logical operator binds, or 0 if the token is
+     * not one.
+     */
+    private static int precedence(TokenType type) {
+        switch (type) {
+            case OR:
+                return 1;
+            case AND:
+                return 2;
+            case BANG_EQUAL:
+            case EQUAL_EQUAL:
+                return 3;
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                return 4;
+            case MINUS:
+            case PLUS:
+                return 5;
+            case SLASH:
+            case STAR:
+            case MODULO:
+                return 6;
+            default:
+                return 0;
+        }
     }
 
     private Expr unary() {
@@ -360,6 +481,11 @@ class Parser {
             } else if (match(DOT)) {
                 Token name = consume(IDENTIFIER, "Expect property name after '.'.");
                 expr = new Expr.Get(expr, name);
+            } else if (match(LEFT_BRACKET)) {
+                Token bracket = previous();
+                Expr index = expression();
+                consume(RIGHT_BRACKET, "Expect ']' after index.");
+                expr = new Expr.Index(expr, bracket, index);
             } else {
                 break;
             }
@@ -404,6 +530,18 @@ class Parser {
             return new Expr.Grouping(expr);
         }
 
+        if (match(LEFT_BRACKET)) {
+            Token bracket = previous();
+            List<Expr> elements = new ArrayList<>();
+            if (!check(RIGHT_BRACKET)) {
+                do {
+                    elements.add(expression());
+                } while (match(COMMA));
+            }
+            consume(RIGHT_BRACKET, "Expect ']' after array elements.");
+            return new Expr.Array(bracket, elements);
+        }
+
         throw error(peek(), "Expect expression.");
     }
 
@@ -421,7 +559,7 @@ class Parser {
     private boolean match(TokenType... types) {
         for (TokenType type : types) {
             if (check(type)) {
-                advance();
+                tokens.advance();
                 return true;
             }
         }
@@ -429,41 +567,44 @@ class Parser {
     }
 
     private Token advance() {
-        if (!isAtEnd()) current++;
+        tokens.advance();
         return previous();
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return tokens.previous();
     }
 
     private boolean check(TokenType type) {
         if (isAtEnd()) return false;
-        return peek().type == type;
+        return tokens.peekType() == type;
     }
 
     private boolean isAtEnd() {
-        return peek().type == EOF;
+        return tokens.peekType() == EOF;
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return tokens.peek();
     }
 
 
     private void synchronize() {
         advance();
 
-        while (!isAtEnd()) {
-            if (previous().type == SEMICOLON) return;
-
+        // the semicolon is checked first, so that a statement ending in one
+        // never looks at the token after it, as a Document relies on
+        while (previous().type != SEMICOLON && !isAtEnd()) {
             switch (peek().type) {
                 case CLASS:
                 case FUN:
+                case PURE:
                 case VAR:
                 case FOR:
                 case IF:
+                case IMPORT:
                 case WHILE:
+                case YIELD:
 //                case PRINT:
                 case RETURN:
                     return;
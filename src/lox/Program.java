@@ -0,0 +1,20 @@
+package lox;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A parsed and resolved script. It holds no runtime state, so one instance
+ * can be run by any number of {@link Interpreter}s, on any thread.
+ */
+class Program {
+
+    final List<Stmt> statements;
+    final Map<Expr, Integer> locals;
+
+    Program(List<Stmt> statements, Map<Expr, Integer> locals) {
+        this.statements = Collections.unmodifiableList(statements);
+        this.locals = Collections.unmodifiableMap(locals);
+    }
+}
@@ -0,0 +1,134 @@
+package lox;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes the on-disk form of a {@link Program} (a ".loxc" file),
+ * so a script that has not changed since its last run skips the front end.
+ *
+ * <p>A file starts with a magic number, the format version and the SHA-256
+ * of the source it was compiled from, followed by the program as an
+ * {@link Ast} arena with its resolved locals, read straight from the mapped
+ * file. The arena is preceded by its length and CRC-32, so a damaged file is
+ * caught before it is decoded. A file whose header or checksum does not
+ * match is ignored.
+ */
+class ProgramFile {
+
+    private static final int MAGIC = 0x4c4f5843; // "LOXC"
+    private static final int VERSION = 4;
+
+    private ProgramFile() {}
+
+    /**
+     * Where the compiled form of the script is kept: in the directory named
+     * by the lox.cache.dir property if set, otherwise next to the script.
+     * Files in the shared directory are also named after a hash of the
+     * script's absolute path, so scripts with the same name in different
+     * directories do not overwrite each other.
+     */
+    static Path pathFor(Path source) {
+        String name = source.getFileName().toString();
+        if (name.endsWith(".lox")) {
+            name = name.substring(0, name.length() - 4);
+        }
+
+        String dir = System.getProperty("lox.cache.dir");
+        if (dir != null) {
+            String path = source.toAbsolutePath().normalize().toString();
+            String hash = ScriptCache.hash(ByteBuffer.wrap(path.getBytes(StandardCharsets.UTF_8)));
+            return Paths.get(dir).resolve(name + "-" + hash.substring(0, 16) + ".loxc");
+        }
+
+        return source.resolveSibling(name + ".loxc");
+    }
+
+    /**
+     * Loads the program stored at path, or returns null if there is none,
+     * it was compiled from a different source or by a different version, or
+     * it is damaged.
+     */
+    static Program load(Path path, String sourceHash) {
+        if (!Files.isRegularFile(path)) return null;
+
+        try (FileChannel channel = FileChannel.open(path)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+                    || buffer.getInt() != Ast.FORMAT) return null;
+
+            byte[] hash = new byte[buffer.getShort()];
+            buffer.get(hash);
+            if (!sourceHash.equals(new String(hash, StandardCharsets.US_ASCII))) return null;
+
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length != buffer.remaining()) return null;
+
+            CRC32 crc = new CRC32();
+            crc.update(buffer.duplicate());
+            if ((int) crc.getValue() != checksum) return null;
+
+            return Ast.read(buffer).decode();
+        } catch (IOException | RuntimeException | StackOverflowError e) {
+            // unreadable or stale, fall back to compiling the source
+            return null;
+        }
+    }
+
+    /**
+     * Stores the program, replacing any previous file atomically. Failures
+     * are ignored since the cache is only an optimization.
+     */
+    static void store(Path path, String sourceHash, Program program) {
+        Path temp = null;
+        try {
+            Path dir = path.toAbsolutePath().getParent();
+            Files.createDirectories(dir);
+            temp = Files.createTempFile(dir, path.getFileName().toString(), ".tmp");
+
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(Ast.FORMAT);
+                byte[] hash = sourceHash.getBytes(StandardCharsets.US_ASCII);
+                out.writeShort(hash.length);
+                out.write(hash);
+
+                ByteArrayOutputStream arena = new ByteArrayOutputStream();
+                Ast.encode(program).write(new DataOutputStream(arena));
+                byte[] bytes = arena.toByteArray();
+                CRC32 crc = new CRC32();
+                crc.update(bytes);
+                out.writeInt(bytes.length);
+                out.writeInt((int) crc.getValue());
+                out.write(bytes);
+            }
+
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            temp = null;
+        } catch (IOException | StackOverflowError e) {
+            // not cached, the script still runs
+        } finally {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package lox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -11,14 +12,20 @@ import java.util.Stack;
  */
 public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
-    private final Interpreter interpreter;
+    private final Map<Expr, Integer> locals = new HashMap<>();
     private final Stack<Map<String, Boolean>> scopes = new Stack<>();
     private FunctionType currentFunction = FunctionType.NONE;
+    private boolean inGenerator = false;
 
     private Stack<Map<Token, Boolean>> variables = new Stack<>();
 
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+    Resolver() {}
+
+    /**
+     * The scope distance of every local variable reference resolved so far.
+     */
+    Map<Expr, Integer> locals() {
+        return locals;
     }
 
 
@@ -54,11 +61,30 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitBinaryExpr(Expr.Binary expr) {
-        resolve(expr.left);
-        resolve(expr.right);
+        resolveChain(expr);
         return null;
     }
 
+    /**
+     * Resolves a chain of binary and logical operators nested through their
+     * left operands with a loop, in the same order recursion would.
+     */
+    private void resolveChain(Expr expr) {
+        List<Expr> chain = new ArrayList<>();
+        Expr operand = expr;
+        while (operand instanceof Expr.Binary || operand instanceof Expr.Logical) {
+            chain.add(operand);
+            operand = operand instanceof Expr.Binary
+                    ? ((Expr.Binary) operand).left : ((Expr.Logical) operand).left;
+        }
+
+        resolve(operand);
+        for (int i = chain.size() - 1; i >= 0; i--) {
+            Expr link = chain.get(i);
+            resolve(link instanceof Expr.Binary ? ((Expr.Binary) link).right : ((Expr.Logical) link).right);
+        }
+    }
+
     @Override
     public Void visitCallExpr(Expr.Call expr) {
         resolve(expr.callee);
@@ -87,8 +113,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitLogicalExpr(Expr.Logical expr) {
-        resolve(expr.left);
-        resolve(expr.right);
+        resolveChain(expr);
         return null;
     }
 
@@ -140,7 +165,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     private void resolveLocal(Expr expr, Token name) {
         for (int i = scopes.size() - 1; i >= 0; i--) {
             if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
+                locals.put(expr, scopes.size() - 1 - i);
                 return;
             }
         }
@@ -148,7 +173,30 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitLambdaExpr(Expr.Lambda expr) {
-        visitFunctionStmt(new Stmt.Function(expr.name, expr.params, expr.body));
+        visitFunctionStmt(new Stmt.Function(expr.name, expr.params, expr.body, expr.isGenerator, false));
+        return null;
+    }
+
+    @Override
+    public Void visitArrayExpr(Expr.Array expr) {
+        for (Expr element : expr.elements) {
+            resolve(element);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitIndexExpr(Expr.Index expr) {
+        resolve(expr.object);
+        resolve(expr.index);
+        return null;
+    }
+
+    @Override
+    public Void visitIndexSetExpr(Expr.IndexSet expr) {
+        resolve(expr.value);
+        resolve(expr.object);
+        resolve(expr.index);
         return null;
     }
 
@@ -204,8 +252,28 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         }
     }
 
+    /**
+     * Dispatches with a switch on the node kind. The resolver walks each
+     * node once, mostly before the JIT has compiled it, and the switch is
+     * cheaper there than a megamorphic accept call.
+     */
     private void resolve(Stmt stmt) {
-        stmt.accept(this);
+        switch (stmt.kind) {
+            case Stmt.BLOCK: visitBlockStmt((Stmt.Block) stmt); break;
+            case Stmt.CLASS: visitClassStmt((Stmt.Class) stmt); break;
+            case Stmt.EXPRESSION: visitExpressionStmt((Stmt.Expression) stmt); break;
+            case Stmt.FUNCTION: visitFunctionStmt((Stmt.Function) stmt); break;
+            case Stmt.IF: visitIfStmt((Stmt.If) stmt); break;
+            case Stmt.WHILE: visitWhileStmt((Stmt.While) stmt); break;
+            case Stmt.PRINT: visitPrintStmt((Stmt.Print) stmt); break;
+            case Stmt.RETURN: visitReturnStmt((Stmt.Return) stmt); break;
+            case Stmt.VAR: visitVarStmt((Stmt.Var) stmt); break;
+            case Stmt.MULTI_VAR: visitMultiVarStmt((Stmt.MultiVar) stmt); break;
+            case Stmt.YIELD: visitYieldStmt((Stmt.Yield) stmt); break;
+            case Stmt.FOR_IN: visitForInStmt((Stmt.ForIn) stmt); break;
+            case Stmt.IMPORT: visitImportStmt((Stmt.Import) stmt); break;
+            default: stmt.accept(this); break;
+        }
     }
 
     private void beginScope() {
@@ -227,6 +295,10 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
+        if (stmt.isPure && stmt.isGenerator) {
+            Lox.error(stmt.name, "A generator cannot be pure.");
+        }
+
         declare(stmt.name);
         define(stmt.name);
         resolveFunction(stmt, FunctionType.FUNCTION);
@@ -237,6 +309,8 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
+        boolean enclosingGenerator = inGenerator;
+        inGenerator = function.isGenerator;
 
         beginScope();
         for (Token param : function.params) {
@@ -246,6 +320,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         resolve(function.body);
         endScope();
         currentFunction = enclosingFunction;
+        inGenerator = enclosingGenerator;
     }
 
     @Override
@@ -264,6 +339,23 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitForInStmt(Stmt.ForIn stmt) {
+        resolve(stmt.iterable);
+
+        beginScope();
+        declare(stmt.name);
+        define(stmt.name);
+        resolve(stmt.body);
+        endScope();
+        return null;
+    }
+
     @Override
     public Void visitPrintStmt(Stmt.Print stmt) {
         return null;
@@ -280,11 +372,27 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             if (currentFunction == FunctionType.INITIALIZER) {
                 Lox.error(stmt.keyword, "Cannot return a value from an initializer.");
             }
+            if (inGenerator) {
+                Lox.error(stmt.keyword, "Cannot return a value from a generator.");
+            }
             resolve(stmt.value);
         }
         return null;
     }
 
+    @Override
+    public Void visitYieldStmt(Stmt.Yield stmt) {
+        if (currentFunction == FunctionType.NONE) {
+            Lox.error(stmt.keyword, "Cannot yield from top-level code.");
+        }
+        if (currentFunction == FunctionType.INITIALIZER) {
+            Lox.error(stmt.keyword, "Cannot yield from an initializer.");
+        }
+
+        resolve(stmt.value);
+        return null;
+    }
+
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
         declareVar(stmt.name);
@@ -303,7 +411,25 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
 
     private void resolve(Expr expr) {
-        expr.accept(this);
+        switch (expr.kind) {
+            case Expr.ASSIGN: visitAssignExpr((Expr.Assign) expr); break;
+            case Expr.TERNARY: visitTernaryExpr((Expr.Ternary) expr); break;
+            case Expr.BINARY: visitBinaryExpr((Expr.Binary) expr); break;
+            case Expr.CALL: visitCallExpr((Expr.Call) expr); break;
+            case Expr.GET: visitGetExpr((Expr.Get) expr); break;
+            case Expr.GROUPING: visitGroupingExpr((Expr.Grouping) expr); break;
+            case Expr.LITERAL: visitLiteralExpr((Expr.Literal) expr); break;
+            case Expr.LOGICAL: visitLogicalExpr((Expr.Logical) expr); break;
+            case Expr.SET: visitSetExpr((Expr.Set) expr); break;
+            case Expr.THIS: visitThisExpr((Expr.This) expr); break;
+            case Expr.UNARY: visitUnaryExpr((Expr.Unary) expr); break;
+            case Expr.VARIABLE: visitVariableExpr((Expr.Variable) expr); break;
+            case Expr.LAMBDA: visitLambdaExpr((Expr.Lambda) expr); break;
+            case Expr.ARRAY: visitArrayExpr((Expr.Array) expr); break;
+            case Expr.INDEX: visitIndexExpr((Expr.Index) expr); break;
+            case Expr.INDEX_SET: visitIndexSetExpr((Expr.IndexSet) expr); break;
+            default: expr.accept(this); break;
+        }
     }
 
     private void declare(Token name) {
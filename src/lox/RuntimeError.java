@@ -12,4 +12,12 @@ class RuntimeError extends RuntimeException {
         super(message);
         this.token = token;
     }
+
+    /**
+     * An error raised by a native function, which has no token of its own.
+     * The interpreter reports it at the call site.
+     */
+    RuntimeError(String message) {
+        this(null, message);
+    }
 }
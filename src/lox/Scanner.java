@@ -1,60 +1,209 @@
 package lox;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 import static lox.TokenType.*;
 
 /**
+ * Turns source text into tokens, either all at once with
+ * {@link #scanTokens()} or one at a time with {@link #nextToken()}.
+ *
+ * <p>A scanner over a Reader or a UTF-8 byte buffer only keeps a window of
+ * the source in memory: the characters of the token being scanned plus
+ * whatever the last read brought in.
+ *
  * @author chenpeng
  * @since 2018-12-27 14:41
  */
 class Scanner {
 
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Reader reader;
+    private char[] buffer;
+    private int limit;
+    private boolean exhausted;
+
+    private Token next;
+    private TokenBuffer output;
+
+    /**
+     * Errors held back until the caller decides to report them, for
+     * scanners working on one chunk of a source in parallel.
+     */
+    private List<Integer> errorLines;
+    private List<Integer> errorPositions;
+    private List<String> errorMessages;
     private int start = 0;
     private int current = 0;
     private int line = 1;
 
-    private static final Map<String, TokenType> keywords;
+    /**
+     * Numbers with at most this many digits fit a double exactly, so they
+     * can be converted without Double.parseDouble.
+     */
+    private static final int MAX_EXACT_DIGITS = 15;
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+    };
+
+    /**
+     * The text of each keyword by token type, so keyword tokens share one
+     * lexeme instead of copying it out of the source.
+     */
+    private static final String[] keywordLexemes = new String[TokenType.values().length];
 
     static {
-        keywords = new HashMap<>(Map.of(
-                "and", AND,
-                "class", CLASS,
-                "else", ELSE,
-                "false", FALSE,
-                "for", FOR,
-                "if", IF,
-                "nil", NIL,
-                "or", OR,
-                "return", RETURN
-        ));
-        keywords.putAll(Map.of(
-                "super", SUPER,
-                "this", THIS,
-                "true", TRUE,
-                "var", VAR,
-                "while", WHILE,
-                "fun", FUN,
-                "continue", CONTINUE,
-                "break", BREAK,
-                "lambda", LAMBDA
-        ));
+        for (TokenType type : new TokenType[] {AND, BREAK, CLASS, CONTINUE, ELSE, FALSE, FOR, FUN,
+                IF, IMPORT, IN, LAMBDA, NIL, OR, PURE, RETURN, SUPER, THIS, TRUE, VAR, WHILE, YIELD}) {
+            keywordLexemes[type.ordinal()] = type.name().toLowerCase();
+        }
     }
 
     Scanner(String source) {
-        this.source = source;
+        this.reader = null;
+        this.buffer = source.toCharArray();
+        this.limit = buffer.length;
+        this.exhausted = true;
+    }
+
+    /**
+     * Scans the characters of source from start to end, which begins on the
+     * given line. Errors are kept and reported by {@link #reportErrors()}.
+     */
+    Scanner(char[] source, int start, int end, int line) {
+        this.reader = null;
+        this.buffer = source;
+        this.current = start;
+        this.limit = end;
+        this.exhausted = true;
+        this.line = line;
+        this.errorLines = new ArrayList<>();
+        this.errorPositions = new ArrayList<>();
+        this.errorMessages = new ArrayList<>();
+    }
+
+    Scanner(Reader reader) {
+        this.reader = reader;
+        this.buffer = new char[BUFFER_SIZE];
+    }
+
+    /**
+     * Scans UTF-8 encoded source, such as a memory-mapped file, decoding it
+     * as it goes.
+     */
+    Scanner(ByteBuffer source) {
+        this(new DecodingReader(source));
     }
 
     List<Token> scanTokens() {
-        while (!isAtEnd()) {
+        List<Token> tokens = new ArrayList<>();
+        Token token;
+        do {
+            token = nextToken();
+            tokens.add(token);
+        } while (token.type != EOF);
+
+        return Collections.unmodifiableList(tokens);
+    }
+
+    /**
+     * Scans the whole source into a compact buffer. Only possible for a
+     * String source, since the buffer refers back to the source text.
+     */
+    TokenBuffer scanBuffer() {
+        TokenBuffer tokens = scanChunk();
+        tokens.add(EOF, current, 0, line, null);
+        return tokens;
+    }
+
+    /**
+     * Like {@link #scanBuffer()}, but stops at the first offset at or past
+     * until that is not inside a token or comment, as told by
+     * {@link #position()}. Characters past until are still looked at to
+     * end the last token, just as when scanning the whole source.
+     */
+    TokenBuffer scanBuffer(int until) {
+        TokenBuffer tokens = scanChunk(until);
+        tokens.add(EOF, current, 0, line, null);
+        return tokens;
+    }
+
+    /**
+     * Like {@link #scanBuffer()}, without the closing EOF token.
+     */
+    TokenBuffer scanChunk() {
+        return scanChunk(Integer.MAX_VALUE);
+    }
+
+    private TokenBuffer scanChunk(int until) {
+        if (reader != null) throw new IllegalStateException("Cannot buffer a streamed source.");
+
+        TokenBuffer tokens = new TokenBuffer(buffer, (Math.min(until, limit) - current) / 4);
+        output = tokens;
+        while (current < until && !isAtEnd()) {
             start = current;
             scanToken();
         }
+        output = null;
 
-        tokens.add(new Token(EOF, "", null, line));
-        return Collections.unmodifiableList(tokens);
+        return tokens;
+    }
+
+    int line() {
+        return line;
+    }
+
+    /**
+     * The offset the scanner has got to.
+     */
+    int position() {
+        return current;
+    }
+
+    /**
+     * The offsets of the tokens the errors held back so far were found in,
+     * in the order {@link #reportErrors()} reports them.
+     */
+    List<Integer> errorPositions() {
+        return new ArrayList<>(errorPositions);
+    }
+
+    /**
+     * Reports the errors held back so far and returns the lines they were
+     * on.
+     */
+    List<Integer> reportErrors() {
+        List<Integer> lines = new ArrayList<>(errorLines);
+        for (int i = 0; i < lines.size(); i++) {
+            Lox.error(lines.get(i), errorMessages.get(i));
+        }
+        errorLines.clear();
+        errorPositions.clear();
+        errorMessages.clear();
+        return lines;
+    }
+
+    /**
+     * Returns the next token, or EOF once the source is used up.
+     */
+    Token nextToken() {
+        next = null;
+        while (next == null) {
+            start = current;
+            if (isAtEnd()) return new Token(EOF, "", null, line);
+            scanToken();
+        }
+        return next;
     }
 
     private void scanToken() {
@@ -65,6 +214,8 @@ class Scanner {
             case ')': addToken(RIGHT_PAREN); break;
             case '{': addToken(LEFT_BRACE); break;
             case '}': addToken(RIGHT_BRACE); break;
+            case '[': addToken(LEFT_BRACKET); break;
+            case ']': addToken(RIGHT_BRACKET); break;
             case ',': addToken(COMMA); break;
             case '.': addToken(DOT); break;
             case '-': addToken(MINUS); break;
@@ -80,7 +231,10 @@ class Scanner {
             case '>': addToken(match('=') ? GREATER_EQUAL : GREATER); break;
             case '/':
                 if (match('/')) {
-                    while (peek() != '\n' && !isAtEnd()) advance();
+                    while (peek() != '\n' && !isAtEnd()) {
+                        start = current;
+                        advance();
+                    }
                 } else if (match('*')) {
                     multiLineComment();
                 } else {
@@ -106,7 +260,7 @@ class Scanner {
                 } else if (isAlpha(c)) {
                     identifier();
                 } else {
-                    Lox.error(line, "Unexpected character.");
+                    error("Unexpected character.");
                 }
 
                 break;
@@ -116,11 +270,12 @@ class Scanner {
     private void multiLineComment() {
         while (peek() != '*' && !isAtEnd()) {
             if (peek() == '\n') line++;
+            start = current;
             advance();
         }
 
         if (isAtEnd()) {
-            Lox.error(line, "Unterminated multiLine comment.");
+            error("Unterminated multiLine comment.");
             return;
         }
 
@@ -136,10 +291,67 @@ class Scanner {
     private void identifier() {
         while (isAlphaNumeric(peek())) advance();
 
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if (type == null) type = IDENTIFIER;
-        addToken(type);
+        addToken(keyword());
+    }
+
+    /**
+     * Recognizes keywords straight from the buffer by switching on the
+     * leading characters and comparing the rest.
+     */
+    private TokenType keyword() {
+        int length = current - start;
+
+        switch (buffer[start]) {
+            case 'a': return checkKeyword(1, "nd", AND);
+            case 'b': return checkKeyword(1, "reak", BREAK);
+            case 'c':
+                if (length > 1 && buffer[start + 1] == 'l') return checkKeyword(2, "ass", CLASS);
+                return checkKeyword(1, "ontinue", CONTINUE);
+            case 'e': return checkKeyword(1, "lse", ELSE);
+            case 'f':
+                if (length > 1) {
+                    switch (buffer[start + 1]) {
+                        case 'a': return checkKeyword(2, "lse", FALSE);
+                        case 'o': return checkKeyword(2, "r", FOR);
+                        case 'u': return checkKeyword(2, "n", FUN);
+                    }
+                }
+                break;
+            case 'i':
+                if (length == 2) {
+                    if (buffer[start + 1] == 'f') return IF;
+                    if (buffer[start + 1] == 'n') return IN;
+                }
+                return checkKeyword(1, "mport", IMPORT);
+            case 'l': return checkKeyword(1, "ambda", LAMBDA);
+            case 'n': return checkKeyword(1, "il", NIL);
+            case 'o': return checkKeyword(1, "r", OR);
+            case 'p': return checkKeyword(1, "ure", PURE);
+            case 'r': return checkKeyword(1, "eturn", RETURN);
+            case 's': return checkKeyword(1, "uper", SUPER);
+            case 't':
+                if (length > 1) {
+                    switch (buffer[start + 1]) {
+                        case 'h': return checkKeyword(2, "is", THIS);
+                        case 'r': return checkKeyword(2, "ue", TRUE);
+                    }
+                }
+                break;
+            case 'v': return checkKeyword(1, "ar", VAR);
+            case 'w': return checkKeyword(1, "hile", WHILE);
+            case 'y': return checkKeyword(1, "ield", YIELD);
+        }
+
+        return IDENTIFIER;
+    }
+
+    private TokenType checkKeyword(int offset, String rest, TokenType type) {
+        if (current - start != offset + rest.length()) return IDENTIFIER;
+
+        for (int i = 0; i < rest.length(); i++) {
+            if (buffer[start + offset + i] != rest.charAt(i)) return IDENTIFIER;
+        }
+        return type;
     }
 
     private boolean isAlphaNumeric(char c) {
@@ -153,21 +365,37 @@ class Scanner {
     }
 
     private void number() {
-        while (isDigit(peek())) advance();
+        long mantissa = buffer[start] - '0';
+        int digits = 1;
+        int scale = 0;
+
+        while (isDigit(peek())) {
+            mantissa = mantissa * 10 + (advance() - '0');
+            digits++;
+        }
 
         if (peek() == '.' && isDigit(peekNext())) {
             advance();
 
-            while (isDigit(peek())) advance();
+            while (isDigit(peek())) {
+                mantissa = mantissa * 10 + (advance() - '0');
+                digits++;
+                scale++;
+            }
         }
 
-        addToken(NUMBER, Double.parseDouble(source.substring(start, current)));
+        // both operands are exact, so the division rounds the same way
+        // Double.parseDouble would
+        double value = digits <= MAX_EXACT_DIGITS
+                ? mantissa / POWERS_OF_TEN[scale]
+                : Double.parseDouble(new String(buffer, start, current - start));
+        addToken(NUMBER, value);
     }
 
     private char peekNext() {
-        if (current + 1 >= source.length()) return '\0';
+        if (!available(1)) return '\0';
 
-        return source.charAt(current+1);
+        return buffer[current + 1];
     }
 
     private boolean isDigit(char c) {
@@ -181,25 +409,36 @@ class Scanner {
         }
 
         if (isAtEnd()) {
-            Lox.error(line, "Unterminated string.");
+            error("Unterminated string.");
             return;
         }
 
         advance();
 
-        String value = source.substring(start+1, current-1);
+        String value = new String(buffer, start + 1, current - start - 2);
         addToken(STRING, value);
     }
 
+    private void error(String message) {
+        if (errorLines == null) {
+            Lox.error(line, message);
+            return;
+        }
+
+        errorLines.add(line);
+        errorPositions.add(start);
+        errorMessages.add(message);
+    }
+
     private char peek() {
         if (isAtEnd()) return '\0';
-        return source.charAt(current);
+        return buffer[current];
     }
 
     private boolean match(char expected) {
         if (isAtEnd()) return false;
 
-        if (source.charAt(current) != expected) return false;
+        if (buffer[current] != expected) return false;
 
         current++;
         return true;
@@ -210,17 +449,98 @@ class Scanner {
     }
 
     private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        if (output != null) {
+            output.add(type, start, current - start, line, literal);
+            return;
+        }
+
+        String text = keywordLexemes[type.ordinal()];
+        if (text == null) text = new String(buffer, start, current - start);
+        next = new Token(type, text, literal, line);
     }
 
     private char advance() {
         current++;
-        return source.charAt(current - 1);
+        return buffer[current - 1];
     }
 
     private boolean isAtEnd() {
-        return current >= source.length();
+        return !available(0);
+    }
+
+    /**
+     * Whether the character ahead of the current one is in the buffer,
+     * reading more of the source if needed. Taken relative to current,
+     * since reading more can move the buffered characters.
+     */
+    private boolean available(int ahead) {
+        while (current + ahead >= limit) {
+            if (!fill()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads more of the source into the buffer, first dropping everything
+     * before the current token. The buffer only grows when a single token
+     * does not fit, or when too little room is left to decode a surrogate
+     * pair, since the reader would then make no progress.
+     */
+    private boolean fill() {
+        if (exhausted) return false;
+
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, limit - start);
+            limit -= start;
+            current -= start;
+            start = 0;
+        }
+        if (buffer.length - limit < 2) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+
+        try {
+            int count = reader.read(buffer, limit, buffer.length - limit);
+            if (count < 0) {
+                exhausted = true;
+                return false;
+            }
+            limit += count;
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static class DecodingReader extends Reader {
+        private final ByteBuffer bytes;
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private boolean ended = false;
+
+        DecodingReader(ByteBuffer bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read(char[] chars, int off, int len) {
+            if (ended) return -1;
+
+            CharBuffer out = CharBuffer.wrap(chars, off, len);
+            decoder.decode(bytes, out, true);
+            if (!bytes.hasRemaining()) {
+                decoder.flush(out);
+                ended = true;
+            }
+
+            int count = out.position() - off;
+            return count == 0 && ended ? -1 : count;
+        }
+
+        @Override
+        public void close() {
+        }
     }
 
 }
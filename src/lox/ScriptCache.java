@@ -0,0 +1,135 @@
+package lox;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * A bounded, thread safe cache of compiled scripts keyed by the SHA-256 of
+ * their source, so running the same source again skips scanning, parsing
+ * and resolving. Entries are evicted least recently used first once their
+ * estimated size exceeds the byte limit.
+ */
+class ScriptCache {
+
+    /**
+     * Rough heap cost of the tokens and nodes produced per source character.
+     */
+    private static final int BYTES_PER_CHAR = 12;
+
+    private final long maxBytes;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    private static class Entry {
+        final Program program;
+        final long size;
+
+        Entry(Program program, long size) {
+            this.program = program;
+            this.size = size;
+        }
+    }
+
+    ScriptCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the program cached under the source hash, compiling it on a
+     * miss. Length is the length of the source, from which the size of the
+     * entry is estimated. Sources with compile errors are never cached and
+     * yield null.
+     */
+    Program get(String key, long length, Supplier<Program> compiler) {
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                hits++;
+                return entry.program;
+            }
+            misses++;
+        }
+
+        // compile outside the lock so a slow miss does not stall hits
+        Program program = compiler.get();
+        if (program == null) return null;
+
+        long size = length * BYTES_PER_CHAR;
+        if (size > maxBytes) return program;
+
+        synchronized (this) {
+            Entry existing = entries.get(key);
+            if (existing != null) return existing.program;
+
+            entries.put(key, new Entry(program, size));
+            bytes += size;
+            evict();
+        }
+        return program;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= it.next().getValue().size;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+
+    synchronized long evictions() {
+        return evictions;
+    }
+
+    synchronized long size() {
+        return bytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("<script cache %d entries, %d bytes, %d hits, %d misses, %d evictions>",
+                entries.size(), bytes, hits, misses, evictions);
+    }
+
+    /**
+     * Hashes the remaining bytes of the buffer, leaving its position at
+     * the end.
+     */
+    static String hash(ByteBuffer source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(source);
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package lox;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * A SymbolMap that tasks on other threads may use at the same time, for the
+ * globals, and for the scopes and instance fields a task can reach. Lookups
+ * take no lock: the keys and values live in one table that is only ever
+ * replaced whole, and each slot is written value first, key last. Writes
+ * are serialised on the map.
+ *
+ * <p>Once a task has been spawned, a value stored here may be read by it at
+ * any time, so it is published with {@link LoxTask#publish} first.
+ */
+class SharedSymbolMap extends SymbolMap {
+
+    private static final int EMPTY = -1;
+    private static final int MIN_SLOTS = 16;
+
+    private static final VarHandle KEYS = MethodHandles.arrayElementVarHandle(int[].class);
+    private static final VarHandle VALUES = MethodHandles.arrayElementVarHandle(Object[].class);
+
+    private volatile Table table;
+    private int size = 0;
+
+    SharedSymbolMap() {
+        this(MIN_SLOTS);
+    }
+
+    /**
+     * Starts with the given number of slots, a power of two.
+     */
+    SharedSymbolMap(int slots) {
+        table = new Table(slots);
+    }
+
+    @Override
+    boolean containsKey(int symbol) {
+        return table.find(symbol) >= 0;
+    }
+
+    @Override
+    Object get(int symbol) {
+        Table table = this.table;
+        int slot = table.find(symbol);
+        return slot < 0 ? null : VALUES.getAcquire(table.values, slot);
+    }
+
+    @Override
+    SymbolMap share(Deque<Object> reached) {
+        return this;
+    }
+
+    @Override
+    void addValues(Deque<Object> values) {
+        Table table = this.table;
+        for (int i = 0; i < table.keys.length; i++) {
+            if ((int) KEYS.getAcquire(table.keys, i) == EMPTY) continue;
+
+            Object value = VALUES.getAcquire(table.values, i);
+            if (value != null) values.add(value);
+        }
+    }
+
+    @Override
+    void put(int symbol, Object value) {
+        if (LoxTask.started) LoxTask.publish(value);
+        store(symbol, value);
+    }
+
+    /**
+     * Puts without publishing the value, for a value that is being
+     * published already.
+     */
+    synchronized void store(int symbol, Object value) {
+        Table table = this.table;
+        int slot = table.find(symbol);
+        if (slot >= 0) {
+            VALUES.setRelease(table.values, slot, value);
+            return;
+        }
+
+        if ((size + 1) * 4 > table.keys.length * 3) {
+            Table grown = new Table(table.keys.length * 2);
+            for (int i = 0; i < table.keys.length; i++) {
+                if (table.keys[i] != EMPTY) grown.insert(table.keys[i], table.values[i]);
+            }
+            grown.insert(symbol, value);
+            this.table = grown;
+        } else {
+            table.insert(symbol, value);
+        }
+        size++;
+    }
+
+    private static final class Table {
+        final int[] keys;
+        final Object[] values;
+
+        Table(int slots) {
+            keys = new int[slots];
+            Arrays.fill(keys, EMPTY);
+            values = new Object[slots];
+        }
+
+        int find(int symbol) {
+            int mask = keys.length - 1;
+            int slot = symbol & mask;
+            while (true) {
+                int key = (int) KEYS.getAcquire(keys, slot);
+                if (key == symbol) return slot;
+                if (key == EMPTY) return -1;
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        void insert(int symbol, Object value) {
+            int mask = keys.length - 1;
+            int slot = symbol & mask;
+            while (keys[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            VALUES.setRelease(values, slot, value);
+            KEYS.setRelease(keys, slot, symbol);
+        }
+    }
+}
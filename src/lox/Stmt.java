@@ -2,7 +2,20 @@ package lox;
 
 import java.util.List;
 
-abstract class Stmt {
+abstract sealed class Stmt permits
+        Stmt.Block,
+        Stmt.Class,
+        Stmt.Expression,
+        Stmt.Function,
+        Stmt.If,
+        Stmt.While,
+        Stmt.Print,
+        Stmt.Return,
+        Stmt.Var,
+        Stmt.MultiVar,
+        Stmt.Yield,
+        Stmt.ForIn,
+        Stmt.Import {
     interface Visitor<R> {
         R visitBlockStmt(Block stmt);
         R visitClassStmt(Class stmt);
@@ -14,10 +27,38 @@ abstract class Stmt {
         R visitReturnStmt(Return stmt);
         R visitVarStmt(Var stmt);
         R visitMultiVarStmt(MultiVar stmt);
+        R visitYieldStmt(Yield stmt);
+        R visitForInStmt(ForIn stmt);
+        R visitImportStmt(Import stmt);
     }
 
-    static class Block extends Stmt {
+    static final int BLOCK = 16;
+    static final int CLASS = 17;
+    static final int EXPRESSION = 18;
+    static final int FUNCTION = 19;
+    static final int IF = 20;
+    static final int WHILE = 21;
+    static final int PRINT = 22;
+    static final int RETURN = 23;
+    static final int VAR = 24;
+    static final int MULTI_VAR = 25;
+    static final int YIELD = 26;
+    static final int FOR_IN = 27;
+    static final int IMPORT = 28;
+
+    /**
+     * Which node class this is, so hot paths can dispatch with a switch
+     * instead of a virtual accept call.
+     */
+    final int kind;
+
+    Stmt(int kind) {
+        this.kind = kind;
+    }
+
+    static final class Block extends Stmt {
         Block(List<Stmt> statements) {
+            super(BLOCK);
             this.statements = statements;
         }
 
@@ -29,8 +70,9 @@ abstract class Stmt {
         final List<Stmt> statements;
     }
 
-    static class Class extends Stmt {
+    static final class Class extends Stmt {
         Class(Token name, List<Stmt.Function> methods, List<Stmt.Function> staticMethods) {
+            super(CLASS);
             this.name = name;
             this.methods = methods;
             this.staticMethods = staticMethods;
@@ -46,8 +88,9 @@ abstract class Stmt {
         final List<Stmt.Function> staticMethods;
     }
 
-    static class Expression extends Stmt {
+    static final class Expression extends Stmt {
         Expression(Expr expression) {
+            super(EXPRESSION);
             this.expression = expression;
         }
 
@@ -59,11 +102,14 @@ abstract class Stmt {
         final Expr expression;
     }
 
-    static class Function extends Stmt {
-        Function(Token name, List<Token> params, List<Stmt> body) {
+    static final class Function extends Stmt {
+        Function(Token name, List<Token> params, List<Stmt> body, boolean isGenerator, boolean isPure) {
+            super(FUNCTION);
             this.name = name;
             this.params = params;
             this.body = body;
+            this.isGenerator = isGenerator;
+            this.isPure = isPure;
         }
 
         @Override
@@ -74,10 +120,13 @@ abstract class Stmt {
         final Token name;
         final List<Token> params;
         final List<Stmt> body;
+        final boolean isGenerator;
+        final boolean isPure;
     }
 
-    static class If extends Stmt {
+    static final class If extends Stmt {
         If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
+            super(IF);
             this.condition = condition;
             this.thenBranch = thenBranch;
             this.elseBranch = elseBranch;
@@ -93,8 +142,10 @@ abstract class Stmt {
         final Stmt elseBranch;
     }
 
-    static class While extends Stmt {
-        While(Expr condition, Stmt body) {
+    static final class While extends Stmt {
+        While(Token keyword, Expr condition, Stmt body) {
+            super(WHILE);
+            this.keyword = keyword;
             this.condition = condition;
             this.body = body;
         }
@@ -104,12 +155,14 @@ abstract class Stmt {
             return visitor.visitWhileStmt(this);
         }
 
+        final Token keyword;
         final Expr condition;
         final Stmt body;
     }
 
-    static class Print extends Stmt {
+    static final class Print extends Stmt {
         Print(Expr expression) {
+            super(PRINT);
             this.expression = expression;
         }
 
@@ -121,8 +174,9 @@ abstract class Stmt {
         final Expr expression;
     }
 
-    static class Return extends Stmt {
+    static final class Return extends Stmt {
         Return(Token keyword, Expr value) {
+            super(RETURN);
             this.keyword = keyword;
             this.value = value;
         }
@@ -136,8 +190,9 @@ abstract class Stmt {
         final Expr value;
     }
 
-    static class Var extends Stmt {
+    static final class Var extends Stmt {
         Var(Token name, Expr initializer) {
+            super(VAR);
             this.name = name;
             this.initializer = initializer;
         }
@@ -151,8 +206,9 @@ abstract class Stmt {
         final Expr initializer;
     }
 
-    static class MultiVar extends Stmt {
+    static final class MultiVar extends Stmt {
         MultiVar(List<Stmt.Var> vars) {
+            super(MULTI_VAR);
             this.vars = vars;
         }
 
@@ -164,6 +220,56 @@ abstract class Stmt {
         final List<Stmt.Var> vars;
     }
 
+    static final class Yield extends Stmt {
+        Yield(Token keyword, Expr value) {
+            super(YIELD);
+            this.keyword = keyword;
+            this.value = value;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitYieldStmt(this);
+        }
+
+        final Token keyword;
+        final Expr value;
+    }
+
+    static final class ForIn extends Stmt {
+        ForIn(Token name, Expr iterable, Stmt body) {
+            super(FOR_IN);
+            this.name = name;
+            this.iterable = iterable;
+            this.body = body;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitForInStmt(this);
+        }
+
+        final Token name;
+        final Expr iterable;
+        final Stmt body;
+    }
+
+    static final class Import extends Stmt {
+        Import(Token keyword, Token path) {
+            super(IMPORT);
+            this.keyword = keyword;
+            this.path = path;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitImportStmt(this);
+        }
+
+        final Token keyword;
+        final Token path;
+    }
+
 
     abstract <R> R accept(Visitor<R> visitor);
 }
@@ -0,0 +1,106 @@
+package lox;
+
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * A map from symbol ids to values, used for scopes, fields and methods.
+ * Open addressing over parallel int and Object arrays, allocated on the
+ * first put since many scopes stay empty.
+ */
+class SymbolMap {
+
+    private static final int EMPTY = -1;
+    private static final int MIN_SLOTS = 4;
+
+    private int[] keys;
+    private Object[] values;
+    private int size = 0;
+
+    boolean containsKey(int symbol) {
+        return find(symbol) >= 0;
+    }
+
+    Object get(int symbol) {
+        int slot = find(symbol);
+        return slot < 0 ? null : values[slot];
+    }
+
+    void put(int symbol, Object value) {
+        if (keys == null) {
+            keys = new int[MIN_SLOTS];
+            Arrays.fill(keys, EMPTY);
+            values = new Object[MIN_SLOTS];
+        } else if ((size + 1) * 4 > keys.length * 3) {
+            resize();
+        }
+
+        int mask = keys.length - 1;
+        int slot = symbol & mask;
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == symbol) {
+                values[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        keys[slot] = symbol;
+        values[slot] = value;
+        size++;
+    }
+
+    private int find(int symbol) {
+        if (keys == null) return -1;
+
+        int mask = keys.length - 1;
+        int slot = symbol & mask;
+        while (true) {
+            int key = keys[slot];
+            if (key == symbol) return slot;
+            if (key == EMPTY) return -1;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * A copy of this map that tasks on other threads may use at the same
+     * time as the thread that made it. The values copied are added to
+     * reached, since other threads can now reach them too.
+     */
+    SymbolMap share(Deque<Object> reached) {
+        SharedSymbolMap shared = new SharedSymbolMap(keys == null ? MIN_SLOTS : keys.length);
+        if (keys != null) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != EMPTY) shared.store(keys[i], values[i]);
+            }
+        }
+        addValues(reached);
+        return shared;
+    }
+
+    /**
+     * Adds the values in this map, other than nil, to values.
+     */
+    void addValues(Deque<Object> values) {
+        if (keys == null) return;
+
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY && this.values[i] != null) values.add(this.values[i]);
+        }
+    }
+
+    private void resize() {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+
+        keys = new int[oldKeys.length * 2];
+        Arrays.fill(keys, EMPTY);
+        values = new Object[oldKeys.length * 2];
+        size = 0;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) put(oldKeys[i], oldValues[i]);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package lox;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The global table of interned names. Every identifier is given a small
+ * integer id once, when it is scanned, so the runtime can key variables,
+ * fields and methods by int instead of hashing strings.
+ */
+final class Symbols {
+
+    private static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private static String[] names = new String[256];
+    private static int count = 0;
+
+    static final int THIS = intern("this");
+    static final int INIT = intern("init");
+
+    private Symbols() {}
+
+    static int intern(String name) {
+        Integer id = ids.get(name);
+        if (id != null) return id;
+
+        synchronized (Symbols.class) {
+            id = ids.get(name);
+            if (id != null) return id;
+
+            if (count == names.length) names = Arrays.copyOf(names, count * 2);
+            names[count] = name;
+            ids.put(name, count);
+            return count++;
+        }
+    }
+
+    static synchronized String name(int symbol) {
+        return names[symbol];
+    }
+}
@@ -10,13 +10,29 @@ public class Token {
     final TokenType type;
     final String lexeme;
     final Object literal;
-    final int line;
+
+    /**
+     * Moved by a {@link Document} when an edit above the statement the
+     * token is in adds or removes lines.
+     */
+    int line;
+
+    /**
+     * The interned id of the name, for identifiers, this and super;
+     * -1 for every other token.
+     */
+    final int symbol;
 
     Token(TokenType type, String lexeme, Object literal, int line) {
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
         this.line = line;
+        this.symbol = isName(type) ? Symbols.intern(lexeme) : -1;
+    }
+
+    private static boolean isName(TokenType type) {
+        return type == TokenType.IDENTIFIER || type == TokenType.THIS || type == TokenType.SUPER;
     }
 
     @Override
@@ -37,7 +53,8 @@ public class Token {
 
     @Override
     public int hashCode() {
-
-        return Objects.hash(type, lexeme, literal, line);
+        int result = type.hashCode();
+        result = 31 * result + (lexeme != null ? lexeme.hashCode() : 0);
+        return 31 * result + line;
     }
 }
@@ -0,0 +1,228 @@
+package lox;
+
+import java.util.Arrays;
+
+/**
+ * All the tokens of a source, stored column-wise in primitive arrays
+ * rather than as one Token object each. A token is a type ordinal, an
+ * offset and length into the source, a line, and for literals an index
+ * into a side pool. Token objects are only built for the tokens the parser
+ * actually asks for, which are mostly the ones kept in the AST.
+ */
+class TokenBuffer implements TokenSource {
+
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final char[] source;
+
+    private byte[] types;
+    private int[] starts;
+    private int[] lengths;
+    private int[] lines;
+    private int[] literals;
+    private int size = 0;
+
+    private Object[] pool = new Object[16];
+    private int poolSize = 0;
+
+    private int current = 0;
+    private Token currentToken;
+    private Token previousToken;
+
+    /**
+     * The Token objects built so far by index, once {@link #keepTokens()}
+     * has been called.
+     */
+    private Token[] built;
+
+    /**
+     * Whether the parser has looked at the EOF token.
+     */
+    private boolean reachedEnd = false;
+
+    TokenBuffer(char[] source, int capacity) {
+        this.source = source;
+        capacity = Math.max(capacity, 16);
+        types = new byte[capacity];
+        starts = new int[capacity];
+        lengths = new int[capacity];
+        lines = new int[capacity];
+        literals = new int[capacity];
+    }
+
+    void add(TokenType type, int start, int length, int line, Object literal) {
+        if (size == types.length) grow();
+
+        types[size] = (byte) type.ordinal();
+        starts[size] = start;
+        lengths[size] = length;
+        lines[size] = line;
+        literals[size] = literal == null ? -1 : addLiteral(literal);
+        size++;
+    }
+
+    private int addLiteral(Object literal) {
+        if (poolSize == pool.length) pool = Arrays.copyOf(pool, poolSize * 2);
+        pool[poolSize] = literal;
+        return poolSize++;
+    }
+
+    private void grow() {
+        int capacity = types.length + (types.length >> 1);
+        types = Arrays.copyOf(types, capacity);
+        starts = Arrays.copyOf(starts, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        lines = Arrays.copyOf(lines, capacity);
+        literals = Arrays.copyOf(literals, capacity);
+    }
+
+    /**
+     * Joins buffers scanned from consecutive parts of the same source.
+     */
+    static TokenBuffer concat(char[] source, TokenBuffer[] parts) {
+        int size = 0;
+        for (TokenBuffer part : parts) size += part.size;
+
+        TokenBuffer tokens = new TokenBuffer(source, size + 1);
+        for (TokenBuffer part : parts) {
+            int at = tokens.size;
+            System.arraycopy(part.types, 0, tokens.types, at, part.size);
+            System.arraycopy(part.starts, 0, tokens.starts, at, part.size);
+            System.arraycopy(part.lengths, 0, tokens.lengths, at, part.size);
+            System.arraycopy(part.lines, 0, tokens.lines, at, part.size);
+
+            int base = tokens.poolSize;
+            for (int i = 0; i < part.size; i++) {
+                int literal = part.literals[i];
+                tokens.literals[at + i] = literal < 0 ? -1 : base + literal;
+            }
+            if (tokens.poolSize + part.poolSize > tokens.pool.length) {
+                tokens.pool = Arrays.copyOf(tokens.pool, Math.max(tokens.pool.length * 2,
+                        tokens.poolSize + part.poolSize));
+            }
+            System.arraycopy(part.pool, 0, tokens.pool, base, part.poolSize);
+
+            tokens.poolSize += part.poolSize;
+            tokens.size += part.size;
+        }
+        return tokens;
+    }
+
+    int size() {
+        return size;
+    }
+
+    TokenType type(int index) {
+        return TYPES[types[index]];
+    }
+
+    int line(int index) {
+        return lines[index];
+    }
+
+    /**
+     * Builds the Token object for the token at index.
+     */
+    Token get(int index) {
+        int literal = literals[index];
+        Token token = new Token(type(index), new String(source, starts[index], lengths[index]),
+                literal < 0 ? null : pool[literal], lines[index]);
+        if (built != null) built[index] = token;
+        return token;
+    }
+
+    /**
+     * Keeps the Token objects built from now on, for {@link #built}.
+     */
+    void keepTokens() {
+        built = new Token[size];
+    }
+
+    /**
+     * The Token objects built for the tokens from index from to index to,
+     * which the parser may have put in the tree it built from them.
+     */
+    Token[] built(int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (built[i] != null) count++;
+        }
+
+        Token[] tokens = new Token[count];
+        for (int i = from, j = 0; i < to; i++) {
+            if (built[i] != null) tokens[j++] = built[i];
+        }
+        return tokens;
+    }
+
+    /**
+     * The index of the next token.
+     */
+    int index() {
+        return current;
+    }
+
+    /**
+     * Whether the parser has looked at the EOF token yet, as it does when
+     * a statement runs into the end of the tokens.
+     */
+    boolean reachedEnd() {
+        return reachedEnd;
+    }
+
+    /**
+     * The source offset of the next token.
+     */
+    int position() {
+        return starts[current];
+    }
+
+    /**
+     * The line of the next token.
+     */
+    int line() {
+        return lines[current];
+    }
+
+    /**
+     * The line of the most recently consumed token.
+     */
+    int previousLine() {
+        return current == 0 ? 1 : lines[current - 1];
+    }
+
+    /**
+     * The source offset just past the most recently consumed token.
+     */
+    int previousEnd() {
+        return current == 0 ? 0 : starts[current - 1] + lengths[current - 1];
+    }
+
+    @Override
+    public Token peek() {
+        if (current == size - 1) reachedEnd = true;
+        if (currentToken == null) currentToken = get(current);
+        return currentToken;
+    }
+
+    @Override
+    public TokenType peekType() {
+        if (current == size - 1) reachedEnd = true;
+        return type(current);
+    }
+
+    @Override
+    public Token previous() {
+        if (previousToken == null) previousToken = get(current - 1);
+        return previousToken;
+    }
+
+    @Override
+    public void advance() {
+        if (type(current) == TokenType.EOF) return;
+
+        previousToken = currentToken;
+        currentToken = null;
+        current++;
+    }
+}
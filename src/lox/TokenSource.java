@@ -0,0 +1,31 @@
+package lox;
+
+/**
+ * Where the parser gets its tokens from. The parser looks at most one
+ * token ahead and one behind, so a source only has to keep those two.
+ */
+interface TokenSource {
+
+    /**
+     * The next token, not yet consumed. EOF once the source is used up.
+     */
+    Token peek();
+
+    /**
+     * The type of the next token, for sources that can tell it without
+     * building the token.
+     */
+    default TokenType peekType() {
+        return peek().type;
+    }
+
+    /**
+     * The most recently consumed token.
+     */
+    Token previous();
+
+    /**
+     * Consumes the next token, unless it is EOF.
+     */
+    void advance();
+}
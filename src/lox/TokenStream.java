@@ -0,0 +1,35 @@
+package lox;
+
+/**
+ * Tokens pulled from a scanner as the parser asks for them, so scanning
+ * and parsing run side by side and consumed tokens can be collected.
+ */
+class TokenStream implements TokenSource {
+
+    private final Scanner scanner;
+    private Token previous;
+    private Token current;
+
+    TokenStream(Scanner scanner) {
+        this.scanner = scanner;
+        this.current = scanner.nextToken();
+    }
+
+    @Override
+    public Token peek() {
+        return current;
+    }
+
+    @Override
+    public Token previous() {
+        return previous;
+    }
+
+    @Override
+    public void advance() {
+        if (current.type == TokenType.EOF) return;
+
+        previous = current;
+        current = scanner.nextToken();
+    }
+}
@@ -7,6 +7,7 @@ package lox;
 public enum TokenType {
 
     LEFT_PAREN, RIGHT_PAREN, LEFT_BRACE, RIGHT_BRACE,
+    LEFT_BRACKET, RIGHT_BRACKET,
     COMMA, DOT, MINUS, PLUS, SEMICOLON, SLASH, STAR,
 
     QUESTION, COLON,
@@ -27,8 +28,8 @@ public enum TokenType {
 
     IDENTIFIER, STRING, NUMBER,
 
-    AND, CLASS, ELSE, FALSE, FUN, FOR, IF, NIL, OR,
-    PRINT, RETURN, SUPER, THIS, TRUE, VAR, WHILE,
+    AND, CLASS, ELSE, FALSE, FUN, FOR, IF, IMPORT, IN, NIL, OR,
+    PRINT, PURE, RETURN, SUPER, THIS, TRUE, VAR, WHILE, YIELD,
 
     EOF
 }
@@ -3,6 +3,7 @@ package tool;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -15,8 +16,8 @@ public class GenerateAst {
     private static final String TAB = "    ";
 
     public static void main(String[] args) throws IOException {
-        if (args.length != 1) {
-            System.err.println("Usage: generate_ast <output directory>");
+        if (args.length < 1 || args.length > 2 || (args.length == 2 && !"--arena".equals(args[1]))) {
+            System.err.println("Usage: generate_ast <output directory> [--arena]");
             System.exit(1);
         }
 
@@ -27,42 +28,71 @@ public class GenerateAst {
 
         //statement
         defineStmt(outputDir);
+
+        if (args.length == 2) {
+            defineArena(outputDir);
+        }
     }
 
+    private static final List<String> STMT_TYPES = Arrays.asList(
+            "Block      : List<Stmt> statements",
+            "Class      : Token name, List<Stmt.Function> methods, List<Stmt.Function> staticMethods",
+            "Expression : Expr expression",
+            "Function   : Token name, List<Token> params, List<Stmt> body, boolean isGenerator, boolean isPure",
+            "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
+            "While      : Token keyword, Expr condition, Stmt body",
+            "Print      : Expr expression",
+            "Return     : Token keyword, Expr value",
+            "Var        : Token name, Expr initializer",
+            "MultiVar   : List<Stmt.Var> vars",
+            "Yield      : Token keyword, Expr value",
+            "ForIn      : Token name, Expr iterable, Stmt body",
+            "Import     : Token keyword, Token path"
+    );
+
+    private static final List<String> EXPR_TYPES = Arrays.asList(
+            "Assign   : Token name, Expr value",
+            "Ternary  : Expr condition, Expr thenBranch, Expr elseBranch",
+            "Binary   : Expr left, Token operator, Expr right",
+            "Call     : Expr callee, Token paren, List<Expr> arguments",
+            "Get      : Expr object, Token name",
+            "Grouping : Expr expression",
+            "Literal  : Object value",
+            "Logical  : Expr left, Token operator, Expr right",
+            "Set      : Expr object, Token name, Expr value",
+            "This     : Token keyword",
+            "Unary    : Token operator, Expr right",
+            "Variable : Token name",
+            "Lambda   : Token name, List<Token> params, List<Stmt> body, boolean isGenerator",
+            "Array    : Token bracket, List<Expr> elements",
+            "Index    : Expr object, Token bracket, Expr index",
+            "IndexSet : Expr object, Token bracket, Expr index, Expr value"
+    );
+
+    /**
+     * Fields that may be null. A stored arena is rejected if any other
+     * child node, list or token is missing.
+     */
+    private static final List<String> OPTIONAL_FIELDS = Arrays.asList(
+            "If.elseBranch",
+            "Return.value",
+            "Var.initializer"
+    );
+
     private static void defineStmt(String outputDir) throws IOException {
-        defineAst(outputDir, "Stmt", Arrays.asList(
-                "Block      : List<Stmt> statements",
-                "Class      : Token name, List<Stmt.Function> methods, List<Stmt.Function> staticMethods",
-                "Expression : Expr expression",
-                "Function   : Token name, List<Token> params, List<Stmt> body",
-                "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
-                "While      : Expr condition, Stmt body",
-                "Print      : Expr expression",
-                "Return     : Token keyword, Expr value",
-                "Var        : Token name, Expr initializer",
-                "MultiVar   : List<Stmt.Var> vars"
-        ));
+        defineAst(outputDir, "Stmt", STMT_TYPES, EXPR_TYPES.size());
     }
 
     private static void defExpr(String outputDir) throws IOException {
-        defineAst(outputDir, "Expr", Arrays.asList(
-                "Assign   : Token name, Expr value",
-                "Ternary  : Expr condition, Expr thenBranch, Expr elseBranch",
-                "Binary   : Expr left, Token operator, Expr right",
-                "Call     : Expr callee, Token paren, List<Expr> arguments",
-                "Get      : Expr object, Token name",
-                "Grouping : Expr expression",
-                "Literal  : Object value",
-                "Logical  : Expr left, Token operator, Expr right",
-                "Set      : Expr object, Token name, Expr value",
-                "This     : Token keyword",
-                "Unary    : Token operator, Expr right",
-                "Variable : Token name",
-                "Lambda   : Token name, List<Token> params, List<Stmt> body"
-        ));
-    }
-
-    private static void defineAst(String outputDir, String baseName, List<String> types) throws IOException {
+        defineAst(outputDir, "Expr", EXPR_TYPES, 0);
+    }
+
+    /**
+     * Node kinds are numbered across both hierarchies, Expr first, so they
+     * match the kinds of the arena encoding.
+     */
+    private static void defineAst(String outputDir, String baseName, List<String> types, int firstKind)
+            throws IOException {
 
         String path = outputDir + "/" + baseName + ".java";
         try (PrintWriter writer = new PrintWriter(path, StandardCharsets.UTF_8)) {
@@ -70,10 +100,33 @@ public class GenerateAst {
             writer.println();
             writerLine(writer, 0, "import java.util.List;");
             writer.println();
-            writerLine(writer, 0, "abstract class ", baseName, " {");
+            // sealed over the final node classes, so a switch over the node
+            // kinds is known to cover every node
+            writerLine(writer, 0, "abstract sealed class ", baseName, " permits");
+            for (int i = 0; i < types.size(); i++) {
+                writerLine(writer, 2, baseName, ".", className(types.get(i)),
+                        i < types.size() - 1 ? "," : " {");
+            }
 
             defineVisitor(writer, baseName, types);
 
+            for (int i = 0; i < types.size(); i++) {
+                writerLine(writer, 1, "static final int ", kindName(className(types.get(i))), " = ",
+                        String.valueOf(firstKind + i), ";");
+            }
+            writer.println();
+
+            writerLine(writer, 1, "/**");
+            writerLine(writer, 1, " * Which node class this is, so hot paths can dispatch with a switch");
+            writerLine(writer, 1, " * instead of a virtual accept call.");
+            writerLine(writer, 1, " */");
+            writerLine(writer, 1, "final int kind;");
+            writer.println();
+            writerLine(writer, 1, baseName, "(int kind) {");
+            writerLine(writer, 2, "this.kind = kind;");
+            writerLine(writer, 1, "}");
+            writer.println();
+
             for (String type : types) {
                 String className = type.split(":")[0].trim();
                 String fields = type.split(":")[1].trim();
@@ -102,8 +155,9 @@ public class GenerateAst {
     }
 
     private static void defineType(PrintWriter writer, String baseName, String className, String fieldList) {
-        writerLine(writer, 1, "static class ", className, " extends ", baseName, " {");
+        writerLine(writer, 1, "static final class ", className, " extends ", baseName, " {");
         writerLine(writer, 2, className, "(", fieldList, ") {");
+        writerLine(writer, 3, "super(", kindName(className), ");");
 
         String[] fields = fieldList.split(", ");
 
@@ -128,6 +182,594 @@ public class GenerateAst {
         writer.println();
     }
 
+    /**
+     * Writes Ast.java, a flat encoding of a whole program: every node is a
+     * record in one int array, starting with its kind and followed by its
+     * fields. Child nodes and lists are stored as offsets into the same
+     * array (-1 for null), a list as its length followed by its elements and
+     * booleans inline. Tokens are kept apart as [type, lexeme, literal, line]
+     * records, with lexemes and literal values in a constant pool, so equal
+     * tokens and repeated names are stored once. Resolved locals are kept as
+     * sorted (node, depth) pairs, and the whole arena has a compact binary
+     * form read back straight from a buffer.
+     */
+    private static void defineArena(String outputDir) throws IOException {
+        List<String> types = new ArrayList<>();
+        List<String> baseNames = new ArrayList<>();
+        for (String type : EXPR_TYPES) {
+            types.add(type);
+            baseNames.add("Expr");
+        }
+        for (String type : STMT_TYPES) {
+            types.add(type);
+            baseNames.add("Stmt");
+        }
+
+        String path = outputDir + "/Ast.java";
+        try (PrintWriter writer = new PrintWriter(path, StandardCharsets.UTF_8)) {
+            writerLine(writer, 0, "package lox;");
+            writer.println();
+            writerLine(writer, 0, "import java.io.DataOutputStream;");
+            writerLine(writer, 0, "import java.io.IOException;");
+            writerLine(writer, 0, "import java.nio.ByteBuffer;");
+            writerLine(writer, 0, "import java.nio.charset.StandardCharsets;");
+            writerLine(writer, 0, "import java.util.ArrayList;");
+            writerLine(writer, 0, "import java.util.Arrays;");
+            writerLine(writer, 0, "import java.util.Collections;");
+            writerLine(writer, 0, "import java.util.HashMap;");
+            writerLine(writer, 0, "import java.util.List;");
+            writerLine(writer, 0, "import java.util.Map;");
+            writer.println();
+            writerLine(writer, 0, "/**");
+            writerLine(writer, 0, " * A program's syntax tree packed into an int array and a constant pool,");
+            writerLine(writer, 0, " * generated by GenerateAst --arena. Nodes are addressed by their offset.");
+            writerLine(writer, 0, " */");
+            writerLine(writer, 0, "final class Ast {");
+            writer.println();
+
+            for (int i = 0; i < types.size(); i++) {
+                writerLine(writer, 1, "static final int ", kindName(className(types.get(i))), " = ",
+                        String.valueOf(i), ";");
+            }
+            writer.println();
+
+            List<String> allTypes = new ArrayList<>(EXPR_TYPES);
+            allTypes.addAll(STMT_TYPES);
+            writerLine(writer, 1, "/**");
+            writerLine(writer, 1, " * Changes whenever the node types or token types do, so a stored arena");
+            writerLine(writer, 1, " * is only read back by the code that wrote it.");
+            writerLine(writer, 1, " */");
+            writerLine(writer, 1, "static final int FORMAT = 31 * ", String.valueOf(allTypes.hashCode()),
+                    " + Arrays.toString(TokenType.values()).hashCode();");
+            writer.println();
+            writerLine(writer, 1, "private static final TokenType[] TOKEN_TYPES = TokenType.values();");
+            writer.println();
+            writerLine(writer, 1, "private static final byte CONSTANT_NIL = 0;");
+            writerLine(writer, 1, "private static final byte CONSTANT_FALSE = 1;");
+            writerLine(writer, 1, "private static final byte CONSTANT_TRUE = 2;");
+            writerLine(writer, 1, "private static final byte CONSTANT_NUMBER = 3;");
+            writerLine(writer, 1, "private static final byte CONSTANT_STRING = 4;");
+            writer.println();
+            writerLine(writer, 1, "private int[] nodes = new int[64];");
+            writerLine(writer, 1, "private int size = 0;");
+            writerLine(writer, 1, "private int[] tokens = new int[64];");
+            writerLine(writer, 1, "private int tokenCount = 0;");
+            writerLine(writer, 1, "private Object[] constants = new Object[16];");
+            writerLine(writer, 1, "private int constantCount = 0;");
+            writerLine(writer, 1, "private int[] localNodes = new int[16];");
+            writerLine(writer, 1, "private int[] localDepths = new int[16];");
+            writerLine(writer, 1, "private int localCount = 0;");
+            writer.println();
+            writerLine(writer, 1, "// set only while decoding");
+            writerLine(writer, 1, "private Token[] decodedTokens;");
+            writerLine(writer, 1, "private Map<Expr, Integer> decodedLocals;");
+            writer.println();
+            writerLine(writer, 1, "/**");
+            writerLine(writer, 1, " * The list of top-level statements.");
+            writerLine(writer, 1, " */");
+            writerLine(writer, 1, "final int statements;");
+            writer.println();
+            writerLine(writer, 1, "private Ast(List<Stmt> statements, Map<Expr, Integer> locals) {");
+            writerLine(writer, 2, "Encoder encoder = new Encoder(locals);");
+            writerLine(writer, 2, "this.statements = encoder.stmts(statements);");
+            writerLine(writer, 2, "nodes = Arrays.copyOf(nodes, size);");
+            writerLine(writer, 2, "tokens = Arrays.copyOf(tokens, tokenCount * 4);");
+            writerLine(writer, 2, "constants = Arrays.copyOf(constants, constantCount);");
+            writerLine(writer, 2, "localNodes = Arrays.copyOf(localNodes, localCount);");
+            writerLine(writer, 2, "localDepths = Arrays.copyOf(localDepths, localCount);");
+            writerLine(writer, 1, "}");
+            writer.println();
+            writerLine(writer, 1, "static Ast encode(List<Stmt> statements) {");
+            writerLine(writer, 2, "return new Ast(statements, Collections.emptyMap());");
+            writerLine(writer, 1, "}");
+            writer.println();
+            writerLine(writer, 1, "static Ast encode(Program program) {");
+            writerLine(writer, 2, "return new Ast(program.statements, program.locals);");
+            writerLine(writer, 1, "}");
+            writer.println();
+            writerLine(writer, 1, "/**");
+            writerLine(writer, 1, " * Rebuilds the node objects and their resolved locals, for the");
+            writerLine(writer, 1, " * interpreter. Equal tokens decode to one shared Token.");
+            writerLine(writer, 1, " */");
+            writerLine(writer, 1, "Program decode() {");
+            writerLine(writer, 2, "decodedTokens = new Token[tokenCount];");
+            writerLine(writer, 2, "decodedLocals = new HashMap<>();");
+            writerLine(writer, 2, "try {");
+            writerLine(writer, 3, "return new Program(stmtList(statements), decodedLocals);");
+            writerLine(writer, 2, "} finally {");
+            writerLine(writer, 3, "decodedTokens = null;");
+            writerLine(writer, 3, "decodedLocals = null;");
+            writerLine(writer, 2, "}");
+            writerLine(writer, 1, "}");
+            writer.println();
+            defineArenaBinary(writer);
+            writerLine(writer, 1, "int kind(int node) {");
+            writerLine(writer, 2, "return nodes[node];");
+            writerLine(writer, 1, "}");
+            writer.println();
+            writerLine(writer, 1, "int listSize(int list) {");
+            writerLine(writer, 2, "return nodes[list];");
+            writerLine(writer, 1, "}");
+            writer.println();
+            writerLine(writer, 1, "/**");
+            writerLine(writer, 1, " * The i-th element of a list: a node offset, or a token index for a");
+            writerLine(writer, 1, " * list of tokens.");
+            writerLine(writer, 1, " */");
+            writerLine(writer, 1, "int listGet(int list, int i) {");
+            writerLine(writer, 2, "return nodes[list + 1 + i];");
+            writerLine(writer, 1, "}");
+            writer.println();
+            writerLine(writer, 1, "Token token(int token) {");
+            writerLine(writer, 2, "if (token == -1) return null;");
+            writerLine(writer, 2, "if (decodedTokens != null && decodedTokens[token] != null) return decodedTokens[token];");
+            writer.println();
+            writerLine(writer, 2, "int at = token * 4;");
+            writerLine(writer, 2, "Token decoded = new Token(TOKEN_TYPES[tokens[at]], (String) constants[tokens[at + 1]],");
+            writerLine(writer, 4, "constants[tokens[at + 2]], tokens[at + 3]);");
+            writerLine(writer, 2, "if (decodedTokens != null) decodedTokens[token] = decoded;");
+            writerLine(writer, 2, "return decoded;");
+            writerLine(writer, 1, "}");
+            writer.println();
+            writerLine(writer, 1, "int nodeCount() {");
+            writerLine(writer, 2, "return size;");
+            writerLine(writer, 1, "}");
+            writer.println();
+
+            defineArenaAccessors(writer, types);
+            defineArenaVisitor(writer, types, baseNames);
+            defineArenaDecoder(writer, types, baseNames);
+            defineArenaEncoder(writer, types, baseNames);
+
+            writerLine(writer, 0, "}");
+        }
+    }
+
+    private static void defineArenaBinary(PrintWriter writer) {
+        writeLines(writer,
+                "    /**",
+                "     * Writes the arena in the form read: the top-level list, the node,",
+                "     * token and local arrays each preceded by its length, then the",
+                "     * constants, each tagged with its type.",
+                "     */",
+                "    void write(DataOutputStream out) throws IOException {",
+                "        out.writeInt(statements);",
+                "        writeInts(out, nodes);",
+                "        writeInts(out, tokens);",
+                "        writeInts(out, localNodes);",
+                "        writeInts(out, localDepths);",
+                "",
+                "        out.writeInt(constants.length);",
+                "        for (Object constant : constants) {",
+                "            if (constant == null) {",
+                "                out.writeByte(CONSTANT_NIL);",
+                "            } else if (constant instanceof Boolean) {",
+                "                out.writeByte((Boolean) constant ? CONSTANT_TRUE : CONSTANT_FALSE);",
+                "            } else if (constant instanceof Double) {",
+                "                out.writeByte(CONSTANT_NUMBER);",
+                "                out.writeDouble((Double) constant);",
+                "            } else if (constant instanceof String) {",
+                "                byte[] bytes = ((String) constant).getBytes(StandardCharsets.UTF_8);",
+                "                out.writeByte(CONSTANT_STRING);",
+                "                out.writeInt(bytes.length);",
+                "                out.write(bytes);",
+                "            } else {",
+                "                throw new IOException(\"Cannot write constant \" + constant + \".\");",
+                "            }",
+                "        }",
+                "    }",
+                "",
+                "    private static void writeInts(DataOutputStream out, int[] values) throws IOException {",
+                "        out.writeInt(values.length);",
+                "        for (int value : values) out.writeInt(value);",
+                "    }",
+                "",
+                "    /**",
+                "     * Reads an arena written by write, leaving the buffer just past it.",
+                "     * Lengths are checked against what is left, and decoding rejects a",
+                "     * missing required child or a child of the wrong kind, but other",
+                "     * damage can go unnoticed: callers should check the bytes first.",
+                "     */",
+                "    static Ast read(ByteBuffer buffer) {",
+                "        return new Ast(buffer);",
+                "    }",
+                "",
+                "    private Ast(ByteBuffer buffer) {",
+                "        statements = buffer.getInt();",
+                "        nodes = readInts(buffer);",
+                "        size = nodes.length;",
+                "        tokens = readInts(buffer);",
+                "        tokenCount = tokens.length / 4;",
+                "        localNodes = readInts(buffer);",
+                "        localDepths = readInts(buffer);",
+                "        localCount = localNodes.length;",
+                "        if (localDepths.length != localCount) throw new IllegalArgumentException(\"Bad locals.\");",
+                "",
+                "        constantCount = buffer.getInt();",
+                "        if (constantCount < 0 || constantCount > buffer.remaining()) {",
+                "            throw new IllegalArgumentException(\"Bad constant count.\");",
+                "        }",
+                "        constants = new Object[constantCount];",
+                "        for (int i = 0; i < constantCount; i++) {",
+                "            switch (buffer.get()) {",
+                "                case CONSTANT_NIL: break;",
+                "                case CONSTANT_FALSE: constants[i] = false; break;",
+                "                case CONSTANT_TRUE: constants[i] = true; break;",
+                "                case CONSTANT_NUMBER: constants[i] = buffer.getDouble(); break;",
+                "                case CONSTANT_STRING:",
+                "                    int length = buffer.getInt();",
+                "                    if (length < 0 || length > buffer.remaining()) {",
+                "                        throw new IllegalArgumentException(\"Bad string length.\");",
+                "                    }",
+                "                    byte[] bytes = new byte[length];",
+                "                    buffer.get(bytes);",
+                "                    constants[i] = new String(bytes, StandardCharsets.UTF_8);",
+                "                    break;",
+                "                default:",
+                "                    throw new IllegalArgumentException(\"Bad constant tag.\");",
+                "            }",
+                "        }",
+                "    }",
+                "",
+                "    private static int[] readInts(ByteBuffer buffer) {",
+                "        int length = buffer.getInt();",
+                "        if (length < 0 || length > buffer.remaining() / 4) {",
+                "            throw new IllegalArgumentException(\"Bad array length.\");",
+                "        }",
+                "        int[] values = new int[length];",
+                "        buffer.asIntBuffer().get(values);",
+                "        buffer.position(buffer.position() + length * 4);",
+                "        return values;",
+                "    }",
+                "");
+    }
+
+    private static void writeLines(PrintWriter writer, String... lines) {
+        for (String line : lines) {
+            writer.println(line);
+        }
+    }
+
+    private static void defineArenaAccessors(PrintWriter writer, List<String> types) {
+        for (String type : types) {
+            String className = className(type);
+            String[] fields = fields(type);
+            for (int i = 0; i < fields.length; i++) {
+                String fieldType = fields[i].split(" ")[0];
+                String name = fields[i].split(" ")[1];
+                String slot = "nodes[node + " + (i + 1) + "]";
+
+                String returnType;
+                String value;
+                if (fieldType.equals("Token")) {
+                    returnType = "Token";
+                    value = "token(" + slot + ")";
+                } else if (fieldType.equals("Object")) {
+                    returnType = "Object";
+                    value = "constants[" + slot + "]";
+                } else if (fieldType.equals("boolean")) {
+                    returnType = "boolean";
+                    value = slot + " != 0";
+                } else {
+                    returnType = "int";
+                    value = slot;
+                }
+
+                writerLine(writer, 1, returnType, " ", lowerFirst(className), upperFirst(name), "(int node) {");
+                writerLine(writer, 2, "return ", value, ";");
+                writerLine(writer, 1, "}");
+                writer.println();
+            }
+        }
+    }
+
+    private static void defineArenaVisitor(PrintWriter writer, List<String> types, List<String> baseNames) {
+        writerLine(writer, 1, "interface Visitor<R> {");
+        for (int i = 0; i < types.size(); i++) {
+            writerLine(writer, 2, "R visit", className(types.get(i)), baseNames.get(i), "(Ast ast, int node);");
+        }
+        writerLine(writer, 1, "}");
+        writer.println();
+
+        writerLine(writer, 1, "<R> R accept(int node, Visitor<R> visitor) {");
+        writerLine(writer, 2, "switch (nodes[node]) {");
+        for (int i = 0; i < types.size(); i++) {
+            String className = className(types.get(i));
+            writerLine(writer, 3, "case ", kindName(className), ": return visitor.visit", className,
+                    baseNames.get(i), "(this, node);");
+        }
+        writerLine(writer, 3, "default: throw new IllegalStateException(\"Bad node kind \" + nodes[node] + \".\");");
+        writerLine(writer, 2, "}");
+        writerLine(writer, 1, "}");
+        writer.println();
+    }
+
+    private static void defineArenaDecoder(PrintWriter writer, List<String> types, List<String> baseNames) {
+        writerLine(writer, 1, "private Expr expr(int node) {");
+        writerLine(writer, 2, "if (node == -1) return null;");
+        writer.println();
+        writerLine(writer, 2, "Expr expr = newExpr(node);");
+        writerLine(writer, 2, "int local = Arrays.binarySearch(localNodes, 0, localCount, node);");
+        writerLine(writer, 2, "if (local >= 0) decodedLocals.put(expr, localDepths[local]);");
+        writerLine(writer, 2, "return expr;");
+        writerLine(writer, 1, "}");
+        writer.println();
+
+        for (String baseName : new String[] {"Expr", "Stmt"}) {
+            if (baseName.equals("Expr")) {
+                writerLine(writer, 1, "private Expr newExpr(int node) {");
+            } else {
+                writerLine(writer, 1, "private Stmt stmt(int node) {");
+                writerLine(writer, 2, "if (node == -1) return null;");
+                writer.println();
+            }
+            writerLine(writer, 2, "switch (nodes[node]) {");
+            for (int i = 0; i < types.size(); i++) {
+                if (!baseNames.get(i).equals(baseName)) continue;
+
+                String className = className(types.get(i));
+                String[] fields = fields(types.get(i));
+                List<String> arguments = new ArrayList<>();
+                for (int j = 0; j < fields.length; j++) {
+                    String fieldType = fields[j].split(" ")[0];
+                    String value = decodeField(fieldType, "nodes[node + " + (j + 1) + "]");
+                    boolean optional = OPTIONAL_FIELDS.contains(className + "." + fields[j].split(" ")[1]);
+                    if (!optional && !fieldType.equals("Object") && !fieldType.equals("boolean")) {
+                        value = "require(" + value + ")";
+                    }
+                    arguments.add(value);
+                }
+                writerLine(writer, 3, "case ", kindName(className), ":");
+                writerLine(writer, 4, "return new ", baseName, ".", className, "(",
+                        String.join(", ", arguments), ");");
+            }
+            writerLine(writer, 3, "default:");
+            writerLine(writer, 4, "throw new IllegalStateException(\"Bad node kind \" + nodes[node] + \".\");");
+            writerLine(writer, 2, "}");
+            writerLine(writer, 1, "}");
+            writer.println();
+        }
+
+        for (String element : new String[] {"Expr", "Stmt", "Stmt.Function", "Stmt.Var", "Token"}) {
+            String name = lowerFirst(element.replace("Stmt.", "")) + "List";
+            writerLine(writer, 1, "private List<", element, "> ", name, "(int list) {");
+            writerLine(writer, 2, "if (list == -1) return null;");
+            writer.println();
+            writerLine(writer, 2, "List<", element, "> elements = new ArrayList<>(nodes[list]);");
+            writerLine(writer, 2, "for (int i = 0; i < nodes[list]; i++) {");
+            writerLine(writer, 3, "elements.add(require(", decodeField(element, "nodes[list + 1 + i]"), "));");
+            writerLine(writer, 2, "}");
+            writerLine(writer, 2, "return elements;");
+            writerLine(writer, 1, "}");
+            writer.println();
+        }
+
+        writerLine(writer, 1, "/**");
+        writerLine(writer, 1, " * Decodes a statement that must be of the given kind.");
+        writerLine(writer, 1, " */");
+        writerLine(writer, 1, "private Stmt stmt(int node, int kind) {");
+        writerLine(writer, 2, "if (node != -1 && nodes[node] != kind) {");
+        writerLine(writer, 3, "throw new IllegalStateException(\"Bad node kind \" + nodes[node] + \".\");");
+        writerLine(writer, 2, "}");
+        writerLine(writer, 2, "return stmt(node);");
+        writerLine(writer, 1, "}");
+        writer.println();
+        writerLine(writer, 1, "private static <T> T require(T child) {");
+        writerLine(writer, 2, "if (child == null) throw new IllegalStateException(\"Missing child node.\");");
+        writerLine(writer, 2, "return child;");
+        writerLine(writer, 1, "}");
+        writer.println();
+    }
+
+    private static String decodeField(String fieldType, String slot) {
+        switch (fieldType) {
+            case "Expr": return "expr(" + slot + ")";
+            case "Stmt": return "stmt(" + slot + ")";
+            case "Stmt.Function": return "(Stmt.Function) stmt(" + slot + ", FUNCTION)";
+            case "Stmt.Var": return "(Stmt.Var) stmt(" + slot + ", VAR)";
+            case "Token": return "token(" + slot + ")";
+            case "Object": return "constants[" + slot + "]";
+            case "boolean": return slot + " != 0";
+            default:
+                String element = fieldType.substring("List<".length(), fieldType.length() - 1);
+                return lowerFirst(element.replace("Stmt.", "")) + "List(" + slot + ")";
+        }
+    }
+
+    private static void defineArenaEncoder(PrintWriter writer, List<String> types, List<String> baseNames) {
+        writerLine(writer, 1, "private int allocate(int length) {");
+        writerLine(writer, 2, "if (size + length > nodes.length) {");
+        writerLine(writer, 3, "nodes = Arrays.copyOf(nodes, Math.max(nodes.length * 2, size + length));");
+        writerLine(writer, 2, "}");
+        writerLine(writer, 2, "int at = size;");
+        writerLine(writer, 2, "size += length;");
+        writerLine(writer, 2, "return at;");
+        writerLine(writer, 1, "}");
+        writer.println();
+
+        writerLine(writer, 1, "private class Encoder implements Expr.Visitor<Integer>, Stmt.Visitor<Integer> {");
+        writerLine(writer, 2, "private final Map<Token, Integer> pooledTokens = new HashMap<>();");
+        writerLine(writer, 2, "private final Map<Object, Integer> pooledConstants = new HashMap<>();");
+        writerLine(writer, 2, "private final Map<Expr, Integer> locals;");
+        writer.println();
+        writerLine(writer, 2, "Encoder(Map<Expr, Integer> locals) {");
+        writerLine(writer, 3, "this.locals = locals;");
+        writerLine(writer, 2, "}");
+        writer.println();
+        writerLine(writer, 2, "/**");
+        writerLine(writer, 2, " * Nodes are allocated after their children, so locals are recorded in");
+        writerLine(writer, 2, " * increasing node order and stay sorted.");
+        writerLine(writer, 2, " */");
+        writerLine(writer, 2, "int expr(Expr expr) {");
+        writerLine(writer, 3, "if (expr == null) return -1;");
+        writer.println();
+        writerLine(writer, 3, "int node = expr.accept(this);");
+        writerLine(writer, 3, "Integer depth = locals.get(expr);");
+        writerLine(writer, 3, "if (depth != null) {");
+        writerLine(writer, 4, "if (localCount == localNodes.length) {");
+        writerLine(writer, 5, "localNodes = Arrays.copyOf(localNodes, localCount * 2);");
+        writerLine(writer, 5, "localDepths = Arrays.copyOf(localDepths, localCount * 2);");
+        writerLine(writer, 4, "}");
+        writerLine(writer, 4, "localNodes[localCount] = node;");
+        writerLine(writer, 4, "localDepths[localCount++] = depth;");
+        writerLine(writer, 3, "}");
+        writerLine(writer, 3, "return node;");
+        writerLine(writer, 2, "}");
+        writer.println();
+        writerLine(writer, 2, "int stmt(Stmt stmt) {");
+        writerLine(writer, 3, "return stmt == null ? -1 : stmt.accept(this);");
+        writerLine(writer, 2, "}");
+        writer.println();
+        writerLine(writer, 2, "int exprs(List<Expr> exprs) {");
+        writerLine(writer, 3, "if (exprs == null) return -1;");
+        writer.println();
+        writerLine(writer, 3, "int[] elements = new int[exprs.size()];");
+        writerLine(writer, 3, "for (int i = 0; i < elements.length; i++) elements[i] = expr(exprs.get(i));");
+        writerLine(writer, 3, "return list(elements);");
+        writerLine(writer, 2, "}");
+        writer.println();
+        writerLine(writer, 2, "int stmts(List<? extends Stmt> stmts) {");
+        writerLine(writer, 3, "if (stmts == null) return -1;");
+        writer.println();
+        writerLine(writer, 3, "int[] elements = new int[stmts.size()];");
+        writerLine(writer, 3, "for (int i = 0; i < elements.length; i++) elements[i] = stmt(stmts.get(i));");
+        writerLine(writer, 3, "return list(elements);");
+        writerLine(writer, 2, "}");
+        writer.println();
+        writerLine(writer, 2, "int tokens(List<Token> tokens) {");
+        writerLine(writer, 3, "if (tokens == null) return -1;");
+        writer.println();
+        writerLine(writer, 3, "int[] elements = new int[tokens.size()];");
+        writerLine(writer, 3, "for (int i = 0; i < elements.length; i++) elements[i] = token(tokens.get(i));");
+        writerLine(writer, 3, "return list(elements);");
+        writerLine(writer, 2, "}");
+        writer.println();
+        writerLine(writer, 2, "private int list(int[] elements) {");
+        writerLine(writer, 3, "int list = allocate(elements.length + 1);");
+        writerLine(writer, 3, "nodes[list] = elements.length;");
+        writerLine(writer, 3, "System.arraycopy(elements, 0, nodes, list + 1, elements.length);");
+        writerLine(writer, 3, "return list;");
+        writerLine(writer, 2, "}");
+        writer.println();
+        writerLine(writer, 2, "private int token(Token token) {");
+        writerLine(writer, 3, "if (token == null) return -1;");
+        writer.println();
+        writerLine(writer, 3, "Integer index = pooledTokens.get(token);");
+        writerLine(writer, 3, "if (index != null) return index;");
+        writer.println();
+        writerLine(writer, 3, "if (tokenCount * 4 == tokens.length) {");
+        writerLine(writer, 4, "tokens = Arrays.copyOf(tokens, tokens.length * 2);");
+        writerLine(writer, 3, "}");
+        writerLine(writer, 3, "int at = tokenCount * 4;");
+        writerLine(writer, 3, "tokens[at] = token.type.ordinal();");
+        writerLine(writer, 3, "tokens[at + 1] = constant(token.lexeme);");
+        writerLine(writer, 3, "tokens[at + 2] = constant(token.literal);");
+        writerLine(writer, 3, "tokens[at + 3] = token.line;");
+        writerLine(writer, 3, "pooledTokens.put(token, tokenCount);");
+        writerLine(writer, 3, "return tokenCount++;");
+        writerLine(writer, 2, "}");
+        writer.println();
+        writerLine(writer, 2, "private int constant(Object value) {");
+        writerLine(writer, 3, "Integer index = pooledConstants.get(value);");
+        writerLine(writer, 3, "if (index != null) return index;");
+        writer.println();
+        writerLine(writer, 3, "if (constantCount == constants.length) {");
+        writerLine(writer, 4, "constants = Arrays.copyOf(constants, constantCount * 2);");
+        writerLine(writer, 3, "}");
+        writerLine(writer, 3, "constants[constantCount] = value;");
+        writerLine(writer, 3, "pooledConstants.put(value, constantCount);");
+        writerLine(writer, 3, "return constantCount++;");
+        writerLine(writer, 2, "}");
+
+        for (int i = 0; i < types.size(); i++) {
+            String className = className(types.get(i));
+            String baseName = baseNames.get(i);
+            String[] fields = fields(types.get(i));
+            String param = baseName.toLowerCase();
+
+            writer.println();
+            writerLine(writer, 2, "@Override");
+            writerLine(writer, 2, "public Integer visit", className, baseName, "(", baseName, ".", className,
+                    " ", param, ") {");
+            // children are written before their parent
+            List<String> values = new ArrayList<>();
+            for (String field : fields) {
+                String fieldType = field.split(" ")[0];
+                String name = field.split(" ")[1];
+                String value = encodeField(fieldType, param + "." + name);
+                if (!fieldType.equals("Token") && !fieldType.equals("Object") && !fieldType.equals("boolean")) {
+                    writerLine(writer, 3, "int ", name, " = ", value, ";");
+                    values.add(name);
+                } else {
+                    values.add(value);
+                }
+            }
+            writerLine(writer, 3, "int node = allocate(", String.valueOf(fields.length + 1), ");");
+            writerLine(writer, 3, "nodes[node] = ", kindName(className), ";");
+            for (int j = 0; j < values.size(); j++) {
+                writerLine(writer, 3, "nodes[node + ", String.valueOf(j + 1), "] = ", values.get(j), ";");
+            }
+            writerLine(writer, 3, "return node;");
+            writerLine(writer, 2, "}");
+        }
+        writerLine(writer, 1, "}");
+    }
+
+    private static String encodeField(String fieldType, String value) {
+        switch (fieldType) {
+            case "Expr": return "expr(" + value + ")";
+            case "Stmt":
+            case "Stmt.Function":
+            case "Stmt.Var":
+                return "stmt(" + value + ")";
+            case "Token": return "token(" + value + ")";
+            case "Object": return "constant(" + value + ")";
+            case "boolean": return value + " ? 1 : 0";
+            case "List<Expr>": return "exprs(" + value + ")";
+            case "List<Token>": return "tokens(" + value + ")";
+            default: return "stmts(" + value + ")";
+        }
+    }
+
+    private static String className(String type) {
+        return type.split(":")[0].trim();
+    }
+
+    private static String[] fields(String type) {
+        return type.split(":")[1].trim().split(", ");
+    }
+
+    private static String kindName(String className) {
+        return className.replaceAll("([a-z])([A-Z])", "$1_$2").toUpperCase();
+    }
+
+    private static String lowerFirst(String name) {
+        return Character.toLowerCase(name.charAt(0)) + name.substring(1);
+    }
+
+    private static String upperFirst(String name) {
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+
     private static void writerLine(PrintWriter writer, int tabs, String... terms) {
         StringBuilder ret = new StringBuilder();
         for (int i = 0; i < tabs; i++) {
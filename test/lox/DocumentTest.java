@@ -0,0 +1,160 @@
+package lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class DocumentTest {
+
+    /**
+     * Text typed in by the random edits, weighted towards the characters
+     * that change how the rest of the script is scanned or grouped.
+     */
+    private static final String[] TYPED = {
+            "\n", "\n\n", ";", "{", "}", "(", ")", "[", "]", "\"", "/*", "*/", "//", "/",
+            "*", " ", "x", "1", ".", "else ", "var y = 2;", "fun g() {", "if (x) ", "=", "+",
+    };
+
+    private PrintStream err;
+
+    @Before
+    public void silenceErrors() {
+        err = System.err;
+        System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @After
+    public void restoreErrors() {
+        System.setErr(err);
+    }
+
+    @Test
+    public void randomEditsAndRevertsMatchAFreshParse() throws IOException {
+        Random random = new Random(46);
+        String original = script(random, 60);
+        Document document = new Document(original);
+        check(document);
+
+        for (int step = 0; step < 2000; step++) {
+            String before = document.text();
+            int offset = random.nextInt(before.length() + 1);
+            int length = Math.min(before.length() - offset, random.nextInt(4) == 0 ? 1 + random.nextInt(6) : 0);
+            String replacement = random.nextInt(4) == 0 ? "" : TYPED[random.nextInt(TYPED.length)];
+            if (length == 0 && replacement.isEmpty()) replacement = ";";
+
+            String removed = before.substring(offset, offset + length);
+            document.edit(offset, length, replacement);
+            check(document);
+
+            // undo, as an editor would, by putting the removed text back
+            document.edit(offset, replacement.length(), removed);
+            assertEquals(before, document.text());
+            check(document);
+        }
+        assertEquals(original, document.text());
+    }
+
+    @Test
+    public void statementsAfterAnEditKeepTheirTrees() {
+        Document document = new Document("var a = 1;\nfun f() {\n  return a;\n}\nvar b = f();\n");
+        List<Stmt> before = document.statements();
+
+        document.edit(0, 0, "\n\n");
+        document.edit(3, 0, "(");
+        document.edit(3, 1, "");
+        document.edit(3, 0, ";");
+        document.edit(3, 1, "");
+
+        List<Stmt> after = document.statements();
+        assertNotNull(after);
+        assertEquals(3, after.size());
+        assertSame(before.get(1), after.get(1));
+        assertSame(before.get(2), after.get(2));
+        assertEquals(7, ((Stmt.MultiVar) after.get(2)).vars.get(0).name.line);
+    }
+
+    @Test
+    public void anUnclosedBraceTakesInTheRest() {
+        Document document = new Document("fun f() {\n  return 1;\n}\nvar a = f();\nvar b = a;\n");
+
+        document.edit(document.text().indexOf('}'), 1, "");
+        assertNull(document.statements());
+
+        document.edit(document.text().length(), 0, "}");
+        List<Stmt> statements = document.statements();
+        assertNotNull(statements);
+        assertEquals(1, statements.size());
+    }
+
+    /**
+     * Checks the document against a document parsed from its text afresh:
+     * both have errors, or both encode to the same nodes and token lines.
+     */
+    private static void check(Document document) throws IOException {
+        Document fresh = new Document(document.text());
+        List<Stmt> expected = fresh.statements();
+        List<Stmt> actual = document.statements();
+
+        if (expected == null) {
+            assertNull(actual);
+            return;
+        }
+        assertNotNull(actual);
+        assertArrayEquals(encode(expected), encode(actual));
+    }
+
+    private static byte[] encode(List<Stmt> statements) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Ast.encode(statements).write(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static String script(Random random, int statements) {
+        StringBuilder script = new StringBuilder("// generated\n");
+        for (int i = 0; i < statements; i++) {
+            switch (random.nextInt(8)) {
+                case 0:
+                    script.append("var v").append(i).append(" = ").append(i).append(" * 2 + 1;\n");
+                    break;
+                case 1:
+                    script.append("fun f").append(i).append("(a, b) {\n  var s = \"; } {\";\n")
+                            .append("  return a + b;\n}\n");
+                    break;
+                case 2:
+                    script.append("class C").append(i).append(" {\n  init() { this.x = [1, 2]; }\n")
+                            .append("  get() { return this.x[0]; }\n}\n");
+                    break;
+                case 3:
+                    script.append("if (").append(i).append(" > 3) x = 1;\n");
+                    break;
+                case 4:
+                    script.append("if (x) { y = 2; } else { y = 3; }\n");
+                    break;
+                case 5:
+                    script.append("/* block ").append(i).append(" */ while (x < 3) x = x + 1;\n");
+                    break;
+                case 6:
+                    script.append("var l").append(i).append(" = lambda(n) { return n / 2; };\n");
+                    break;
+                default:
+                    script.append("print(\"line ").append(i).append("\"); // done\n");
+                    break;
+            }
+        }
+        return script.toString();
+    }
+}